@@ -0,0 +1,129 @@
+package com.conveyal.osmlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether and when the extract server produces each requested extract, so that a few huge extracts cannot
+ * monopolize the disk and memory while many small ones wait behind them.
+ *
+ * The cost of each request is estimated from the spatial index before any entities are read. Requests that are too
+ * large are refused outright. The others are divided into a small and a large cost class, each with its own limit on
+ * the number of extracts produced at once and its own bounded queue of requests waiting for their turn. Requests that
+ * find the queue full or wait too long are turned away, to be retried later.
+ *
+ * Counting the ways in the MapDB spatial index takes time in proportion to their number, so unless the database has
+ * a fresh Hilbert index, the count stops as soon as a request is known to be large, and only the number of tiles
+ * limits the size of large requests.
+ *
+ * The limits can be set with system properties, as listed on the fields below.
+ */
+public class AdmissionController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionController.class);
+
+    private static final Metrics.Gauge RUNNING = new Metrics.Gauge("vex_admission_running",
+            "Extracts being produced, by cost class.", "class");
+
+    private static final Metrics.Gauge WAITING = new Metrics.Gauge("vex_admission_waiting",
+            "Extract requests waiting for their turn, by cost class.", "class");
+
+    /** vex.admission.maxTiles: requests covering more zoom 12 tiles than this are refused. */
+    private final long maxTiles = Long.getLong("vex.admission.maxTiles", 512 * 512);
+
+    /**
+     * vex.admission.maxWays: requests for extracts with more ways than this are refused, when the ways can be counted
+     * with a fresh Hilbert index.
+     */
+    private final long maxWays = Long.getLong("vex.admission.maxWays", 20_000_000);
+
+    /** vex.admission.smallWays: extracts with at most this many ways are in the small cost class. */
+    private final long smallWays = Long.getLong("vex.admission.smallWays", 200_000);
+
+    /** vex.admission.queueSeconds: how long a request may wait for its turn before it is turned away. */
+    private final long queueSeconds = Long.getLong("vex.admission.queueSeconds", 60);
+
+    /**
+     * vex.admission.smallConcurrency, vex.admission.smallQueue: how many small extracts may be produced at once,
+     * and how many more may wait for their turn.
+     */
+    private final CostClass small = new CostClass("small",
+            Integer.getInteger("vex.admission.smallConcurrency", Runtime.getRuntime().availableProcessors() * 2),
+            Integer.getInteger("vex.admission.smallQueue", 200));
+
+    /**
+     * vex.admission.largeConcurrency, vex.admission.largeQueue: how many large extracts may be produced at once,
+     * and how many more may wait for their turn.
+     */
+    private final CostClass large = new CostClass("large",
+            Integer.getInteger("vex.admission.largeConcurrency", 2),
+            Integer.getInteger("vex.admission.largeQueue", 10));
+
+    /** A limit on the number of extracts of similar cost that are produced and waiting at once. */
+    private static class CostClass {
+        final String name;
+        final Semaphore running;
+        final int maxWaiting;
+        final AtomicInteger waiting = new AtomicInteger();
+        CostClass (String name, int maxRunning, int maxWaiting) {
+            this.name = name;
+            this.running = new Semaphore(maxRunning, true);
+            this.maxWaiting = maxWaiting;
+            RUNNING.labels(name).set(() -> maxRunning - running.availablePermits());
+            WAITING.labels(name).set(waiting::get);
+        }
+    }
+
+    /** Thrown when a request is not admitted, carrying the HTTP status with which it should be answered. */
+    public static class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public final int status;
+        public RejectedException (int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /** Permission to produce an extract, which must be closed once the extract is finished. */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Wait until the extract defined by the given source may be produced.
+     * @throws RejectedException with status 413 if the extract is too large to ever be produced, or 429 if it cannot
+     *         be produced now.
+     */
+    public Permit admit (TileOSMSource source) throws RejectedException, InterruptedException {
+        if (source.countTiles() > maxTiles) {
+            throw new RejectedException(413, "The requested area covers more than " + maxTiles + " tiles.");
+        }
+        // This runs before any limit on concurrency applies, so the ways are never counted past what decides the class.
+        long ways = source.estimateWays(smallWays + 1);
+        if (ways > maxWays) {
+            throw new RejectedException(413, "The requested area contains more than " + maxWays + " ways.");
+        }
+        CostClass costClass = ways <= smallWays ? small : large;
+        if (!costClass.running.tryAcquire()) {
+            if (costClass.waiting.incrementAndGet() > costClass.maxWaiting) {
+                costClass.waiting.decrementAndGet();
+                throw new RejectedException(429, "Too many " + costClass.name + " extracts are waiting.");
+            }
+            try {
+                if (!costClass.running.tryAcquire(queueSeconds, TimeUnit.SECONDS)) {
+                    throw new RejectedException(429, "Timed out waiting to produce a " + costClass.name + " extract.");
+                }
+            } finally {
+                costClass.waiting.decrementAndGet();
+            }
+        }
+        LOG.debug("Admitted {} extract with about {} ways.", costClass.name, ways);
+        return costClass.running::release;
+    }
+
+}
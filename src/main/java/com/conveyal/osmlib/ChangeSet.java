@@ -0,0 +1,182 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * The net effect of one or more consecutive replication diffs. Only the last version of each entity is kept, and an
+ * entity that is created and then deleted within the change set is dropped altogether, so applying many diffs at once
+ * writes and re-indexes each entity only once however often it was edited.
+ *
+ * Changes must be applied as a whole, because nodes, ways and relations are only coherent with one another at the
+ * end of a diff.
+ */
+public class ChangeSet {
+
+    /** Changed entities of one type by ID, where a null entity means the entity was deleted. */
+    static class Changes<T extends OSMEntity> {
+
+        final TLongObjectMap<T> entities = new TLongObjectHashMap<>();
+
+        /** Entities that did not exist before this change set, which can be forgotten entirely if they are deleted. */
+        private final TLongSet created = new TLongHashSet();
+
+        void put (long id, T entity, boolean create) {
+            if (create && !entities.containsKey(id)) created.add(id);
+            entities.put(id, entity);
+        }
+
+        void delete (long id) {
+            if (created.remove(id)) {
+                entities.remove(id);
+            } else {
+                entities.put(id, null);
+            }
+        }
+
+        /** @return the IDs of the changed entities in ascending order, which is also the order of the database keys. */
+        long[] sortedIds () {
+            long[] ids = entities.keys();
+            Arrays.sort(ids);
+            return ids;
+        }
+
+    }
+
+    /** The number of consecutive changed IDs written by a single task when a change set is applied in parallel. */
+    private static final int IDS_PER_TASK = 1024;
+
+    final Changes<Node> nodes = new Changes<>();
+    final Changes<Way> ways = new Changes<>();
+    final Changes<Relation> relations = new Changes<>();
+
+    /** The number of entities that will be written or removed when this change set is applied. */
+    public int size () {
+        return nodes.entities.size() + ways.entities.size() + relations.entities.size();
+    }
+
+    /** Write all the changes to the given database on the calling thread. See applyTo(OSM, ForkJoinPool). */
+    public void applyTo (OSM osm) {
+        applyTo(osm, null);
+    }
+
+    /**
+     * Write all the changes to the given database, keeping its spatial indexes and change tracker up to date. Ways
+     * are removed from the spatial index before any nodes are moved, so they are found in the tiles where they were
+     * indexed, and are added back once all their nodes are in place. This includes the ways that reference a changed
+     * node without being changed themselves, whose shape and possibly tile change along with the node. These are found
+     * through the index of ways by node, which the database maintains from the first change set on.
+     *
+     * Changes to entities of the same type are independent of one another, so if a pool is given, the IDs changed
+     * at each of these stages are divided into ranges that are written concurrently. Contiguous IDs are mostly found
+     * in the same nodes of the database trees, so the tasks rarely touch the same parts of them. Each stage is
+     * finished before the next one begins.
+     */
+    public void applyTo (OSM osm, ForkJoinPool pool) {
+        osm.indexWaysByNode();
+        long[] wayIds = ways.sortedIds();
+        long[] affectedWayIds = affectedWays(osm, wayIds, pool);
+        forEachId(pool, affectedWayIds, wayId -> {
+            osm.trackWayChange(wayId, null);
+            osm.unIndexWay(wayId);
+        });
+        forEachId(pool, nodes.sortedIds(), nodeId -> {
+            // Remove any tagged node from the index at its old location before it is moved or removed.
+            osm.trackNodeChange(nodeId, null);
+            osm.unIndexNode(nodeId);
+            Node node = nodes.entities.get(nodeId);
+            if (node == null) {
+                osm.nodes.remove(nodeId);
+            } else {
+                osm.nodes.put(nodeId, node);
+                osm.indexNode(nodeId, node);
+                osm.trackNodeChange(nodeId, node);
+            }
+        });
+        forEachId(pool, wayIds, wayId -> {
+            Way way = ways.entities.get(wayId);
+            if (way == null) {
+                osm.ways.remove(wayId);
+            } else {
+                osm.ways.put(wayId, way);
+            }
+        });
+        forEachId(pool, affectedWayIds, wayId -> {
+            Way way = ways.entities.containsKey(wayId) ? ways.entities.get(wayId) : osm.ways.get(wayId);
+            if (way != null) {
+                osm.indexWay(wayId, way);
+                osm.trackWayChange(wayId, way);
+            }
+        });
+        forEachId(pool, relations.sortedIds(), relationId -> {
+            osm.trackRelationChange(relationId, null);
+            Relation relation = relations.entities.get(relationId);
+            if (relation == null) {
+                osm.relations.remove(relationId);
+            } else {
+                osm.relations.put(relationId, relation);
+                osm.trackRelationChange(relationId, relation);
+            }
+        });
+    }
+
+    /**
+     * @return the IDs of the changed ways and of all the ways in the database that reference a changed node, in
+     *         ascending order. This must be called before the changes are written, while the index of ways by node
+     *         still reflects the old ways.
+     */
+    private long[] affectedWays (OSM osm, long[] wayIds, ForkJoinPool pool) {
+        TLongSet affected = new TLongHashSet(wayIds);
+        LongStream nodeIds = LongStream.of(nodes.entities.keys());
+        if (pool == null) {
+            nodeIds.flatMap(osm::waysOfNode).forEach(affected::add);
+        } else {
+            affected.addAll(run(pool, () -> nodeIds.parallel().flatMap(osm::waysOfNode).toArray()));
+        }
+        long[] affectedIds = affected.toArray();
+        Arrays.sort(affectedIds);
+        return affectedIds;
+    }
+
+    /**
+     * Perform the given action on each of the given IDs, dividing them into ranges of IDS_PER_TASK that are handled
+     * concurrently if a pool is given.
+     */
+    private static void forEachId (ForkJoinPool pool, long[] ids, LongConsumer action) {
+        if (pool == null || ids.length <= IDS_PER_TASK) {
+            for (long id : ids) action.accept(id);
+            return;
+        }
+        int nChunks = (ids.length + IDS_PER_TASK - 1) / IDS_PER_TASK;
+        run(pool, () -> {
+            IntStream.range(0, nChunks).parallel().forEach(c -> {
+                int end = Math.min(ids.length, (c + 1) * IDS_PER_TASK);
+                for (int i = c * IDS_PER_TASK; i < end; i++) action.accept(ids[i]);
+            });
+            return null;
+        });
+    }
+
+    /** Run the given task in the given pool, so that any parallel streams it uses run in that pool too. */
+    private static <T> T run (ForkJoinPool pool, Callable<T> task) {
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while applying changes.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error occurred while applying changes.", e.getCause());
+        }
+    }
+
+}
@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A pipeline stage that receives uncompressed VEX blocks and writes them out in compressed form.
@@ -45,6 +46,9 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
 
     private final Thread blockWriterThread;
 
+    /** Set by the writer thread if it fails, after which no more blocks will be accepted. */
+    private volatile Exception writerFailure = null;
+
     /**
      * Create a DeflatedBlockWriter that writes deflated data to the given OutputStream.
      * Starts up a separate thread running the blockWriter's compression/writing loop.
@@ -54,6 +58,7 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
         buffer = new byte[VEXBlock.BUFFER_SIZE];
         currentEntityType = VexFormat.VEX_NONE;
         blockWriterThread = new Thread(this);
+        blockWriterThread.setName("VEX-Writer for " + Thread.currentThread().getName());
         blockWriterThread.start();
     }
 
@@ -63,9 +68,15 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
      */
     private void handOff(VEXBlock vexBlock) {
         try {
-            synchronousQueue.put(vexBlock);
+            // Rather than waiting forever if the writer thread has failed (for example because the client downloading
+            // the output has gone away), report its failure.
+            while (!synchronousQueue.offer(vexBlock, 1, TimeUnit.SECONDS)) {
+                if (writerFailure != null || !blockWriterThread.isAlive()) {
+                    throw new RuntimeException("VEX block writer thread has stopped.", writerFailure);
+                }
+            }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            throw new RuntimeException("Interrupted while handing off a VEX block.", e);
         }
     }
 
@@ -83,14 +94,21 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
                 VEXBlock block = synchronousQueue.take(); // block until work is available
                 if (block == VEXBlock.END_BLOCK) break;
                 block.writeDeflated(downstream);
+            } catch (RuntimeException ex) {
+                // Stop here. The thread producing blocks will notice this failure instead of waiting on this thread.
+                LOG.error("Writing VEX output failed: {}", ex.getMessage());
+                writerFailure = ex;
+                break;
             } catch (InterruptedException ex) {
                 // Preferably, we'd like to use a thread interrupt to tell the thread to shut down when there's no more
                 // input. It should finish writing the last block before exiting.
                 // InterruptedException should only happen during interruptable activity like sleeping or polling,
                 // and we don't expect it to happen during I/O: http://stackoverflow.com/a/10962613/778449
                 // However when writing to a PipedOutputStream, blocked write() calls can also notice the interrupt and
-                // abort with an InterruptedIOException so this is not viable. Instead we use a special sentinel block.
-                LOG.error("Block writer thread was interrupted while waiting for work.");
+                // abort with an InterruptedIOException so this is not viable. Instead we use a special sentinel block,
+                // and an interrupt only means the output is being abandoned.
+                LOG.debug("Block writer thread was interrupted.");
+                writerFailure = ex;
                 break;
             }
         }
@@ -98,10 +116,11 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
         // Or at least this is what piped streams impose.
         // See https://techtavern.wordpress.com/2008/07/16/whats-this-ioexception-write-end-dead/
         try {
-            downstream.flush();
+            if (writerFailure == null) downstream.flush();
             downstream.close();
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            LOG.error("Exception while closing downstream: {}", e.getMessage());
+            if (writerFailure == null) writerFailure = e;
         }
 
     }
@@ -115,6 +134,19 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
+        if (writerFailure != null) {
+            throw new RuntimeException("Error occurred while writing VEX output.", writerFailure);
+        }
+    }
+
+    /** Stop the writer thread without writing any more blocks. */
+    public void abort() {
+        blockWriterThread.interrupt();
+        try {
+            blockWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /** Affects the header that will be prepended to subsequent blocks when they are written out. */
@@ -0,0 +1,40 @@
+package com.conveyal.osmlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads replication updates from a copy of the replication tree on the local filesystem. This allows updates to be
+ * applied without network access, for example to measure how fast a range of diffs can be applied.
+ */
+public class DirectoryReplicationSource implements ReplicationSource {
+
+    private final File directory;
+
+    public DirectoryReplicationSource(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public InputStream openState(int sequenceNumber) throws IOException {
+        return new FileInputStream(new File(directory, ReplicationSource.stateFile(sequenceNumber)));
+    }
+
+    @Override
+    public InputStream openChange(int sequenceNumber) throws IOException {
+        return new FileInputStream(new File(directory, ReplicationSource.path(sequenceNumber) + ".osc.gz"));
+    }
+
+    @Override
+    public String describeState(int sequenceNumber) {
+        return new File(directory, ReplicationSource.stateFile(sequenceNumber)).getPath();
+    }
+
+    @Override
+    public String toString() {
+        return directory.getPath();
+    }
+
+}
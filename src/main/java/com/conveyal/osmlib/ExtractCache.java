@@ -0,0 +1,257 @@
+package com.conveyal.osmlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A size-bounded on-disk cache of encoded extracts, keyed on their tile range and output format.
+ *
+ * Each cached extract records the time of the last replication update that changed any of its tiles when it was made,
+ * according to a TileChangeTracker. It is served as-is until an update touches those tiles again, so repeated requests
+ * for the same area are answered by streaming a file instead of reading thousands of entities from the database.
+ * The least recently used extracts are evicted once the total size of the cache exceeds its limit.
+ */
+public class ExtractCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractCache.class);
+
+    private static final Metrics.Counter REQUESTS = new Metrics.Counter("osmlib_extract_cache_requests_total",
+            "Extract requests answered from the cache (hit) or the database (miss).", "result");
+
+    /**
+     * An extract contains entire ways, whose nodes may lie in tiles neighboring the ones where the ways are indexed.
+     * Changes within this many tiles around the tile range of an extract are therefore considered to affect it.
+     */
+    private static final int MARGIN_TILES = 1;
+
+    /** Cached extracts are stored under file names of the form minX_minY_maxX_maxY_version.extension */
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)_(\\d+)_(\\d+)_(\\d+)_(\\d+)(\\.[a-z]+)");
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final TileChangeTracker tracker;
+
+    /** Cached extracts in access order, so that the least recently used one is always first. */
+    private final LinkedHashMap<String, CachedExtract> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes = 0;
+
+    private static class CachedExtract {
+        final File file;
+        final long version;
+        CachedExtract (File file, long version) {
+            this.file = file;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Open a cache in the given directory, keeping any extracts left there by a previous run that are still valid.
+     * @param maxBytes the total size of the cached extracts above which the least recently used will be evicted.
+     */
+    public ExtractCache (File directory, long maxBytes, TileChangeTracker tracker) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.tracker = tracker;
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new RuntimeException("Could not list extract cache directory " + directory);
+        }
+        for (File file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                int minX = Integer.parseInt(matcher.group(1));
+                int minY = Integer.parseInt(matcher.group(2));
+                int maxX = Integer.parseInt(matcher.group(3));
+                int maxY = Integer.parseInt(matcher.group(4));
+                long version = Long.parseLong(matcher.group(5));
+                if (version >= version(minX, minY, maxX, maxY)) {
+                    entries.put(key(minX, minY, maxX, maxY, matcher.group(6)), new CachedExtract(file, version));
+                    totalBytes += file.length();
+                    continue;
+                }
+            }
+            // Temporary files from interrupted extracts and extracts older than the database.
+            file.delete();
+        }
+        LOG.info("Extract cache {} contains {} valid extracts totaling {} MB.", directory, entries.size(),
+                totalBytes / 1024 / 1024);
+        evict();
+    }
+
+    /**
+     * Write the extract defined by the given source to the given stream in the format indicated by the extension of
+     * the given name, either from the cache or by copying it out of the database while saving it to the cache.
+     */
+    public void copy (TileOSMSource source, String name, OutputStream out) throws IOException {
+        String extension = name.substring(name.lastIndexOf('.'));
+        String key = key(source.getMinX(), source.getMinY(), source.getMaxX(), source.getMaxY(), extension);
+        long version = version(source);
+        File cached = lookup(key, version);
+        if (cached != null) {
+            try {
+                Files.copy(cached.toPath(), out);
+                REQUESTS.labels("hit").inc();
+                return;
+            } catch (NoSuchFileException e) {
+                LOG.debug("Cached extract {} was evicted before it could be read.", cached);
+            }
+        }
+        REQUESTS.labels("miss").inc();
+        if (version == Long.MAX_VALUE) {
+            // Tiles in this range are being updated. Do not keep an extract that may reflect a partially applied diff.
+            source.copyTo(sink(name, out));
+            return;
+        }
+        File temp = File.createTempFile("extract", ".tmp", directory);
+        boolean committed = false;
+        try {
+            TeeOutputStream tee;
+            try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(temp))) {
+                tee = new TeeOutputStream(out, fileOut);
+                source.copyTo(sink(name, tee));
+            }
+            // Output is written by a separate thread for some formats, and errors there may not reach this thread.
+            committed = !tee.failed && commit(key, source, extension, temp, version);
+        } finally {
+            if (!committed) temp.delete();
+        }
+    }
+
+    private static OSMEntitySink sink (String name, OutputStream out) {
+        OSMEntitySink sink = OSMEntitySink.forStream(name, out);
+        if (sink == null) {
+            throw new IllegalArgumentException("Unrecognized extract format: " + name);
+        }
+        return sink;
+    }
+
+    private static String key (int minX, int minY, int maxX, int maxY, String extension) {
+        return minX + "_" + minY + "_" + maxX + "_" + maxY + extension;
+    }
+
+    /**
+     * @return the version of the extract defined by the given source, which changes whenever a replication update
+     *         touches its tiles, or Long.MAX_VALUE while an update touching them is being applied.
+     */
+    public long version (TileOSMSource source) {
+        return version(source.getMinX(), source.getMinY(), source.getMaxX(), source.getMaxY());
+    }
+
+    private long version (int minX, int minY, int maxX, int maxY) {
+        return tracker.lastChange(minX - MARGIN_TILES, minY - MARGIN_TILES, maxX + MARGIN_TILES, maxY + MARGIN_TILES);
+    }
+
+    /** @return the cached extract for the given key if it is at least as recent as the given version, or null. */
+    private synchronized File lookup (String key, long version) {
+        CachedExtract entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.version < version) {
+            remove(key);
+            return null;
+        }
+        return entry.file;
+    }
+
+    /**
+     * Move a newly written extract into the cache, unless an update has touched its tiles since it was started.
+     * @return whether the extract was kept.
+     */
+    private synchronized boolean commit (String key, TileOSMSource source, String extension, File temp, long version) {
+        if (version(source) != version) {
+            return false;
+        }
+        File file = new File(directory, source.getMinX() + "_" + source.getMinY() + "_" + source.getMaxX() + "_" +
+                source.getMaxY() + "_" + version + extension);
+        remove(key);
+        if (!temp.renameTo(file)) {
+            LOG.warn("Could not move extract {} into the cache.", file);
+            return false;
+        }
+        entries.put(key, new CachedExtract(file, version));
+        totalBytes += file.length();
+        evict();
+        return true;
+    }
+
+    private void remove (String key) {
+        CachedExtract entry = entries.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.file.length();
+            entry.file.delete();
+        }
+    }
+
+    /** Remove the least recently used extracts until the cache is within its size limit. */
+    private synchronized void evict () {
+        Iterator<Map.Entry<String, CachedExtract>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            CachedExtract entry = iterator.next().getValue();
+            iterator.remove();
+            totalBytes -= entry.file.length();
+            entry.file.delete();
+        }
+    }
+
+    /** Writes everything to two output streams, recording whether any write failed. */
+    private static class TeeOutputStream extends OutputStream {
+
+        private final OutputStream out1, out2;
+
+        volatile boolean failed = false;
+
+        TeeOutputStream (OutputStream out1, OutputStream out2) {
+            this.out1 = out1;
+            this.out2 = out2;
+        }
+
+        @Override
+        public void write (int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) throws IOException {
+            try {
+                out1.write(b, off, len);
+                out2.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush () throws IOException {
+            out1.flush();
+            out2.flush();
+        }
+
+        @Override
+        public void close () throws IOException {
+            try {
+                out1.close();
+            } finally {
+                out2.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A static, read-only spatial index of ways stored in a memory-mapped file.
+ *
+ * Every way in the tile-based spatial index of an OSM database becomes a single long in this file, combining the
+ * position of its tile along the Hilbert curve (high bits) and the way ID (low bits). These are sorted, so a bounding
+ * box query is just a binary search for each of the few Hilbert ranges covering the box, followed by a sequential
+ * read of the matching entries. Entries take 8 bytes each with no per-entry objects, and the Hilbert ordering keeps
+ * the ways of a geographic area together on disk.
+ *
+ * This index does not follow changes made to the database after it was built, so it is only used for databases
+ * that are not being updated. It records the replication timestamp of the database it was built from so that stale
+ * indexes can be detected and ignored.
+ */
+public class HilbertIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HilbertIndex.class);
+
+    /** The file name extension for Hilbert index files, which are stored next to the OSM database file. */
+    public static final String FILE_EXTENSION = ".hilbert";
+
+    private static final long MAGIC = 0x56455848494C4232L; // "VEXHILB2"
+
+    private static final int HEADER_BYTES = 3 * Long.BYTES;
+
+    /**
+     * The low bits of each entry hold the way ID, leaving the high bits for the position along the Hilbert curve.
+     * This is the same layout as the tile index keys, so all entries are non-negative longs.
+     */
+    private static final int ID_BITS = TileKey.ID_BITS;
+
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+    /** A single mapped buffer cannot exceed 2GB, so the entries are mapped in chunks of this many. */
+    private static final int CHUNK_BITS = 27;
+
+    /** Number of entries sorted in memory at once while building the index. Larger inputs are merged from disk. */
+    private static final int RUN_SIZE = 1 << 24;
+
+    /** The replication timestamp of the database this index was built from. */
+    public final long timestamp;
+
+    /** The number of ways in the index. */
+    public final long size;
+
+    private final LongBuffer[] chunks;
+
+    private HilbertIndex (long timestamp, long size, LongBuffer[] chunks) {
+        this.timestamp = timestamp;
+        this.size = size;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Find all ways whose index tile lies in the given inclusive range of tiles.
+     * @return the way IDs, ordered along the Hilbert curve (and therefore spatially clustered).
+     */
+    public long[] query (int minX, int minY, int maxX, int maxY) {
+        TLongList wayIds = new TLongArrayList();
+        long[] ranges = SpaceFillingCurve.HILBERT.ranges(minX, minY, maxX, maxY);
+        for (int r = 0; r < ranges.length; r += 2) {
+            // Use an inclusive upper bound so it is still a non-negative long when the range reaches the end of the curve.
+            long last = (ranges[r + 1] << ID_BITS) - 1;
+            for (long i = lowerBound(ranges[r] << ID_BITS); i < size; i++) {
+                long entry = get(i);
+                if (entry > last) break;
+                wayIds.add(entry & ID_MASK);
+            }
+        }
+        return wayIds.toArray();
+    }
+
+    /** @return the number of ways in the given tile range, found by binary search without reading the ways. */
+    public long count (int minX, int minY, int maxX, int maxY) {
+        long count = 0;
+        long[] ranges = SpaceFillingCurve.HILBERT.ranges(minX, minY, maxX, maxY);
+        for (int r = 0; r < ranges.length; r += 2) {
+            long end = ranges[r + 1] << ID_BITS;
+            count += (end < 0 ? size : lowerBound(end)) - lowerBound(ranges[r] << ID_BITS);
+        }
+        return count;
+    }
+
+    /** @return the index of the first entry that is greater than or equal to the given value. */
+    private long lowerBound (long value) {
+        long lo = 0, hi = size;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (get(mid) < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private long get (long i) {
+        return chunks[(int) (i >>> CHUNK_BITS)].get((int) (i & ((1 << CHUNK_BITS) - 1)));
+    }
+
+    /** Memory-map an existing index file. */
+    public static HilbertIndex open (File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            if (raf.readLong() != MAGIC) {
+                throw new IOException("Not a Hilbert index file: " + file);
+            }
+            long timestamp = raf.readLong();
+            long size = raf.readLong();
+            int nChunks = (int) ((size + (1L << CHUNK_BITS) - 1) >>> CHUNK_BITS);
+            LongBuffer[] chunks = new LongBuffer[nChunks];
+            for (int c = 0; c < nChunks; c++) {
+                long first = (long) c << CHUNK_BITS;
+                long count = Math.min(1L << CHUNK_BITS, size - first);
+                // The mapping remains valid after the channel is closed.
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * Long.BYTES,
+                        count * Long.BYTES).asLongBuffer();
+            }
+            LOG.info("Opened Hilbert index of {} ways at {}.", size, file);
+            return new HilbertIndex(timestamp, size, chunks);
+        }
+    }
+
+    /**
+     * Build an index file from the tile-based spatial index of the given database. Entries are sorted in runs that
+     * fit in memory, which are spilled to temporary files and merged if the database is too big for a single run.
+     */
+    public static void build (OSM osm, File file) throws IOException {
+        LOG.info("Building Hilbert index at {}...", file);
+        List<File> runs = new ArrayList<>();
+        TLongArrayList run = new TLongArrayList();
+        long size = 0;
+        try {
+            for (long key : osm.index) {
+                long wayId = TileKey.entityId(key);
+                long d = SpaceFillingCurve.HILBERT.encode(TileKey.xtile(key), TileKey.ytile(key));
+                run.add(d << ID_BITS | wayId);
+                size++;
+                if (run.size() == RUN_SIZE) {
+                    runs.add(writeRun(run));
+                    run.resetQuick();
+                }
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeLong(MAGIC);
+                out.writeLong(osm.timestamp.get());
+                out.writeLong(size);
+                if (runs.isEmpty()) {
+                    run.sort();
+                    for (int i = 0; i < run.size(); i++) out.writeLong(run.get(i));
+                } else {
+                    runs.add(writeRun(run));
+                    run = null; // Release the in-memory run before merging.
+                    mergeRuns(runs, out);
+                }
+            }
+        } finally {
+            runs.forEach(File::delete);
+        }
+        LOG.info("Done building Hilbert index of {} ways.", size);
+    }
+
+    private static File writeRun (TLongArrayList run) throws IOException {
+        run.sort();
+        File runFile = File.createTempFile("hilbert", ".run");
+        runFile.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)))) {
+            for (int i = 0; i < run.size(); i++) out.writeLong(run.get(i));
+        }
+        return runFile;
+    }
+
+    /** A k-way merge of sorted run files. */
+    private static void mergeRuns (List<File> runs, DataOutputStream out) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> Long.compare(a.head, b.head));
+        try {
+            for (File runFile : runs) {
+                RunReader reader = new RunReader(runFile);
+                if (reader.advance()) queue.add(reader);
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                out.writeLong(reader.head);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.in.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) reader.in.close();
+        }
+    }
+
+    private static class RunReader {
+        final DataInputStream in;
+        long head;
+        RunReader (File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+        boolean advance () throws IOException {
+            try {
+                head = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+    }
+
+}
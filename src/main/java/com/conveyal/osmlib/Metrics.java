@@ -0,0 +1,250 @@
+package com.conveyal.osmlib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A minimal registry of counters, gauges and histograms, which can be written out in the Prometheus text exposition
+ * format. Each metric is declared once as a static field of the class that updates it, and is registered under its
+ * name when that class is loaded.
+ *
+ * A metric may have label names, in which case a separate time series is kept for each combination of label values
+ * passed to labels(). The methods on the metric itself update the time series with no label values.
+ */
+public class Metrics {
+
+    /** All metrics by name, kept sorted so the output is stable from one scrape to the next. */
+    private static final Map<String, Metric<?>> REGISTRY = new TreeMap<>();
+
+    /** Bucket upper bounds in seconds suitable for timing anything from a cache hit to a continent-sized extract. */
+    public static final double[] SECONDS_BUCKETS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 1800
+    };
+
+    public static abstract class Metric<C> {
+
+        final String name;
+        final String help;
+        final String[] labelNames;
+        private final Map<List<String>, C> children = new ConcurrentHashMap<>();
+
+        Metric (String name, String help, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+            synchronized (REGISTRY) {
+                if (REGISTRY.put(name, this) != null) {
+                    throw new IllegalArgumentException("Metric " + name + " is already registered.");
+                }
+            }
+        }
+
+        /** @return the time series for the given label values, which must match the label names of the metric. */
+        public C labels (String... labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException("Metric " + name + " has labels " + Arrays.toString(labelNames));
+            }
+            return children.computeIfAbsent(List.of(labelValues), k -> newChild());
+        }
+
+        abstract String type ();
+
+        abstract C newChild ();
+
+        abstract void write (StringBuilder out, String labels, C child);
+
+        void write (StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type()).append('\n');
+            for (Map.Entry<List<String>, C> entry : children.entrySet()) {
+                StringBuilder labels = new StringBuilder();
+                for (int i = 0; i < labelNames.length; i++) {
+                    if (i > 0) labels.append(',');
+                    labels.append(labelNames[i]).append("=\"").append(escape(entry.getKey().get(i))).append('"');
+                }
+                write(out, labels.toString(), entry.getValue());
+            }
+        }
+
+    }
+
+    /** A value that only ever increases, such as a number of requests or bytes. */
+    public static class Counter extends Metric<Counter.Child> {
+
+        public Counter (String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        public static class Child {
+            private final DoubleAdder value = new DoubleAdder();
+            public void inc () {
+                value.add(1);
+            }
+            public void add (double amount) {
+                value.add(amount);
+            }
+        }
+
+        public void inc () {
+            labels().inc();
+        }
+
+        public void add (double amount) {
+            labels().add(amount);
+        }
+
+        @Override
+        String type () {
+            return "counter";
+        }
+
+        @Override
+        Child newChild () {
+            return new Child();
+        }
+
+        @Override
+        void write (StringBuilder out, String labels, Child child) {
+            sample(out, name, labels, child.value.sum());
+        }
+
+    }
+
+    /** A value that can go up and down, read from the given supplier each time the metrics are written out. */
+    public static class Gauge extends Metric<Gauge.Child> {
+
+        public Gauge (String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        public static class Child {
+            private volatile DoubleSupplier supplier = () -> Double.NaN;
+            public void set (DoubleSupplier supplier) {
+                this.supplier = supplier;
+            }
+        }
+
+        public void set (DoubleSupplier supplier) {
+            labels().set(supplier);
+        }
+
+        @Override
+        String type () {
+            return "gauge";
+        }
+
+        @Override
+        Child newChild () {
+            return new Child();
+        }
+
+        @Override
+        void write (StringBuilder out, String labels, Child child) {
+            sample(out, name, labels, child.supplier.getAsDouble());
+        }
+
+    }
+
+    /** Counts observed values, such as durations, in buckets with the given upper bounds. */
+    public static class Histogram extends Metric<Histogram.Child> {
+
+        private final double[] buckets;
+
+        public Histogram (String name, String help, double[] buckets, String... labelNames) {
+            super(name, help, labelNames);
+            this.buckets = buckets;
+        }
+
+        public class Child {
+            private final LongAdder[] counts = new LongAdder[buckets.length];
+            private final DoubleAdder sum = new DoubleAdder();
+            private final LongAdder count = new LongAdder();
+            Child () {
+                for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+            }
+            public void observe (double value) {
+                // Buckets are counted individually and accumulated when written out.
+                for (int i = 0; i < buckets.length; i++) {
+                    if (value <= buckets[i]) {
+                        counts[i].increment();
+                        break;
+                    }
+                }
+                sum.add(value);
+                count.increment();
+            }
+            /** Observe the number of seconds elapsed since the given System.nanoTime(). */
+            public void observeSince (long startNanos) {
+                observe((System.nanoTime() - startNanos) / 1e9);
+            }
+        }
+
+        public void observe (double value) {
+            labels().observe(value);
+        }
+
+        public void observeSince (long startNanos) {
+            labels().observeSince(startNanos);
+        }
+
+        @Override
+        String type () {
+            return "histogram";
+        }
+
+        @Override
+        Child newChild () {
+            return new Child();
+        }
+
+        @Override
+        void write (StringBuilder out, String labels, Child child) {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += child.counts[i].sum();
+                sample(out, name + "_bucket", labels + separator + "le=\"" + format(buckets[i]) + '"', cumulative);
+            }
+            sample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", child.count.sum());
+            sample(out, name + "_sum", labels, child.sum.sum());
+            sample(out, name + "_count", labels, child.count.sum());
+        }
+
+    }
+
+    /** Write all registered metrics in the Prometheus text exposition format. */
+    public static void writeTo (Writer writer) throws IOException {
+        StringBuilder out = new StringBuilder();
+        synchronized (REGISTRY) {
+            for (Metric<?> metric : REGISTRY.values()) metric.write(out);
+        }
+        writer.write(out.toString());
+        writer.flush();
+    }
+
+    private static void sample (StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format (double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static String escape (String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
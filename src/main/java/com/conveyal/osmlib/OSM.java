@@ -9,6 +9,8 @@ import java.io.OutputStream;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.LongStream;
 import org.mapdb.Atomic;
 import org.mapdb.BTreeKeySerializer;
 import org.mapdb.BTreeMap;
@@ -31,14 +33,29 @@ import org.slf4j.LoggerFactory;
 public class OSM implements OSMEntitySource, OSMEntitySink {
 
     private static final Logger LOG = LoggerFactory.getLogger(OSM.class);
-    private final Atomic.String replicationUrl;
+    private Atomic.String replicationUrl;
 
     public Map<Long, Node> nodes;
     public Map<Long, Way> ways;
     public Map<Long, Relation> relations;
 
-    /** A tile-based spatial index. */
-    public NavigableSet<Tuple3<Integer, Integer, Long>> index; // (x_tile, y_tile, wayId)
+    /** A tile-based spatial index of ways, keyed on the Morton code of the tile and the way ID. See TileKey. */
+    public NavigableSet<Long> index;
+
+    /** A tile-based spatial index of tagged nodes, such as points of interest and transit stops. See TileKey. */
+    public NavigableSet<Long> nodeIndex;
+
+    /**
+     * A static packed copy of the spatial index for databases that are not being updated, or null if there is none.
+     * See freshHilbertIndex().
+     */
+    HilbertIndex hilbertIndex;
+
+    /** Where the Hilbert index for this database is stored, or null if the database is not stored in a file. */
+    private File hilbertIndexFile;
+
+    /** If set, records which tiles are changed as replication updates are applied. Not persisted. */
+    public TileChangeTracker changeTracker;
 
     /** An index of which relations reference a way */
     public NavigableSet<Fun.Tuple2<Long, Long>> relationsByWay;
@@ -49,6 +66,15 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
     /** An index of which relations reference a relation (yes, relations can contain other relations) */
     public NavigableSet<Fun.Tuple2<Long, Long>> relationsByRelation;
 
+    /**
+     * An index of which ways reference a node, for finding the ways that change shape when a node moves. This is only
+     * kept up to date once indexWaysByNode() has been called.
+     */
+    public NavigableSet<Fun.Tuple2<Long, Long>> waysByNode;
+
+    /** Whether waysByNode is being updated as ways are written. */
+    private boolean waysByNodeBound = false;
+
     /** The nodes that are referenced at least once by ways in this OSM. */
     NodeTracker referencedNodes = new NodeTracker();
 
@@ -73,6 +99,12 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
     /** If true we are reading already filled OSM mapdv **/
     private boolean reading = false;
 
+    /** If true, the database supports snapshots and readers are given the last one published. See readView(). */
+    private final boolean snapshots;
+
+    /** The snapshot of the database most recently published to readers, or null if they read the database itself. */
+    private volatile OSM published = null;
+
     /**
      * Construct a new MapDB-based random-access OSM data store.
      * If diskPath is null, OSM will be loaded into a temporary file and deleted on shutdown.
@@ -81,6 +113,20 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
      * @param diskPath - the file in which to save the data, null for a temp file, or "__MEMORY__" for in-memory.
      */
     public OSM (String diskPath) {
+        this(diskPath, false);
+    }
+
+    /**
+     * Construct a new MapDB-based random-access OSM data store, optionally supporting consistent snapshots. With
+     * snapshots, a database can be read through readView() while it is being changed, for example by replication
+     * updates, and readers only see the changes once they are published. Every write then also keeps the previous
+     * version of the records it replaces for any snapshot still in use, so this is best left off when loading.
+     *
+     * @param diskPath - the file in which to save the data, null for a temp file, or "__MEMORY__" for in-memory.
+     * @param snapshots - whether to take snapshots of the database that are published to readers with publish().
+     */
+    public OSM (String diskPath, boolean snapshots) {
+        this.snapshots = snapshots;
         DBMaker dbMaker;
         if (diskPath == null) {
             LOG.info("OSM will be stored in a temporary file.");
@@ -99,8 +145,13 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
                     LOG.info("OSM will be stored in file {}.", diskPath);
                 }
                 dbMaker = DBMaker.newFileDB(dp);
+                hilbertIndexFile = new File(diskPath + HilbertIndex.FILE_EXTENSION);
             }
         }
+        if (snapshots) {
+            // Snapshots live in memory and do not change how the data are stored, so any database can use them.
+            dbMaker = dbMaker.snapshotEnable();
+        }
 
 
         if (reading) {
@@ -129,7 +180,48 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
         if (db.getAll().isEmpty()) {
             LOG.info("No OSM tables exist yet, they will be created.");
         }
-        
+        openTables();
+        migrateTupleIndex("spatial_index", index);
+        migrateTupleIndex("spatial_node_index", nodeIndex);
+
+        // need as btreemaps below to bind functions
+        BTreeMap<Long, Relation> relations = db.getTreeMap("relations");
+
+        Bind.secondaryKeys(relations, relationsByNode,
+                (k, r) -> r.members.stream().filter(m -> m.type == OSMEntity.Type.NODE).map(m -> m.id).toArray(i -> new Long[i]));
+
+        Bind.secondaryKeys(relations, relationsByWay,
+                (k, r) -> r.members.stream().filter(m -> m.type == OSMEntity.Type.WAY).map(m -> m.id).toArray(i -> new Long[i]));
+
+        Bind.secondaryKeys(relations, relationsByRelation,
+                (k, r) -> r.members.stream().filter(m -> m.type == OSMEntity.Type.RELATION).map(m -> m.id).toArray(i -> new Long[i]));
+
+        if (hilbertIndexFile != null && hilbertIndexFile.exists()) {
+            try {
+                hilbertIndex = HilbertIndex.open(hilbertIndexFile);
+            } catch (IOException e) {
+                LOG.warn("Could not open Hilbert index {}, it will not be used.", hilbertIndexFile, e);
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Construct a read-only view of the given database as of the given snapshot of its MapDB. The tables are only
+     * opened, so none of the migrations or bindings of the database itself are needed.
+     */
+    private OSM (OSM database, DB snapshot) {
+        snapshots = false;
+        reading = true;
+        db = snapshot;
+        openTables();
+        hilbertIndex = database.hilbertIndex;
+        hilbertIndexFile = database.hilbertIndexFile;
+        intersectionNodes = database.intersectionNodes;
+    }
+
+    /** Open all the tables of the database, creating any that do not exist yet. */
+    private void openTables () {
         nodes = db.createTreeMap("nodes")
                 .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
                 .valueSerializer(new NodeSerializer())
@@ -140,16 +232,17 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
                 .valueSerializer(new WaySerializer())
                 .makeOrGet();
 
-        // need as btreemap below to bind function
-        BTreeMap<Long, Relation> relations = db.createTreeMap("relations")
+        relations = db.createTreeMap("relations")
                 .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
                 .makeOrGet();
-        this.relations = relations;
 
-        // Serializer delta-compresses the tuple as a whole and variable-width packs ints,
-        // but does not recursively delta-code its elements.
-        index = db.createTreeSet("spatial_index")
-                .serializer(BTreeKeySerializer.TUPLE3) 
+        // Spatial index keys are single longs, which are delta-coded and variable-width packed by the serializer.
+        index = db.createTreeSet("tile_index")
+                .serializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                .makeOrGet();
+
+        nodeIndex = db.createTreeSet("tile_node_index")
+                .serializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
                 .makeOrGet();
 
         relationsByWay = db.createTreeSet("relations_by_way")
@@ -164,14 +257,9 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
                 .serializer(BTreeKeySerializer.TUPLE2)
                 .makeOrGet();
 
-        Bind.secondaryKeys(relations, relationsByNode,
-                (k, r) -> r.members.stream().filter(m -> m.type == OSMEntity.Type.NODE).map(m -> m.id).toArray(i -> new Long[i]));
-
-        Bind.secondaryKeys(relations, relationsByWay,
-                (k, r) -> r.members.stream().filter(m -> m.type == OSMEntity.Type.WAY).map(m -> m.id).toArray(i -> new Long[i]));
-
-        Bind.secondaryKeys(relations, relationsByRelation,
-                (k, r) -> r.members.stream().filter(m -> m.type == OSMEntity.Type.RELATION).map(m -> m.id).toArray(i -> new Long[i]));
+        waysByNode = db.createTreeSet("ways_by_node")
+                .serializer(BTreeKeySerializer.TUPLE2)
+                .makeOrGet();
 
         // GetAtomicLong() will create the atomic long entry if it doesn't exist
         timestamp = db.getAtomicLong("timestamp");
@@ -179,6 +267,101 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
         replicationUrl = db.getAtomicString("replication_url");
     }
 
+    /**
+     * Keep the index of which ways reference each node up to date from now on, first filling it from all the existing
+     * ways if it is empty. Only a database receiving replication updates needs this index, to find the ways that move
+     * along with their nodes. It holds an entry for every node reference, so it is not maintained while loading or
+     * serving a database that does not change, and filling it for an existing planet database takes hours. Ways
+     * written while the index was not maintained are missing from it, so a database that is loaded into after being
+     * updated should have its ways_by_node table removed. Does nothing if the index is already maintained.
+     */
+    public synchronized void indexWaysByNode () {
+        if (waysByNodeBound) return;
+        BTreeMap<Long, Way> ways = db.getTreeMap("ways");
+        // Binding fills an empty index from the existing table.
+        boolean filling = waysByNode.isEmpty() && !ways.isEmpty();
+        if (filling) {
+            LOG.info("Indexing the ways that reference each node, this may take a while...");
+        }
+        Bind.secondaryKeys(ways, waysByNode,
+                (k, w) -> LongStream.of(w.nodes).boxed().toArray(i -> new Long[i]));
+        if (filling) {
+            LOG.info("Done indexing the ways that reference each node.");
+        }
+        waysByNodeBound = true;
+    }
+
+    /** @return whether the index of ways by node is being kept up to date. See indexWaysByNode(). */
+    synchronized boolean isIndexingWaysByNode () {
+        return waysByNodeBound;
+    }
+
+    /**
+     * Make the current state of the database visible to everything reading it through readView(). This should only
+     * be called when the database is consistent, such as once a replication update has been entirely applied. Readers
+     * already holding an older snapshot keep using it, and it is discarded once none of them need it anymore.
+     * Does nothing if the database was not opened with snapshots.
+     */
+    public void publish () {
+        if (snapshots) {
+            published = new OSM(this, db.snapshot());
+        }
+    }
+
+    /**
+     * @return a consistent read-only view of the database as of the last call to publish(), which never waits for
+     *         changes in progress. If the database was not opened with snapshots, this is the database itself.
+     */
+    public OSM readView () {
+        OSM view = published;
+        return view == null ? this : view;
+    }
+
+    /**
+     * Older databases stored their spatial indexes as sets of (x_tile, y_tile, id) tuples. Copy any such index into
+     * the given packed index and remove it, so existing databases keep working without being reloaded.
+     */
+    private void migrateTupleIndex (String oldName, NavigableSet<Long> packedIndex) {
+        if (!db.exists(oldName)) return;
+        LOG.info("Converting spatial index {} to packed keys...", oldName);
+        NavigableSet<Tuple3<Integer, Integer, Long>> tupleIndex = db.getTreeSet(oldName);
+        for (Tuple3<Integer, Integer, Long> item : tupleIndex) {
+            packedIndex.add(TileKey.encode(item.a, item.b, item.c));
+        }
+        db.delete(oldName);
+        LOG.info("Done converting spatial index {}.", oldName);
+    }
+
+    /**
+     * (Re)build the static Hilbert index from the contents of the tile-based spatial index, and save it next to the
+     * database file. This should be done once loading is finished, and only makes sense for databases that will not
+     * be updated afterward.
+     */
+    public void buildHilbertIndex() {
+        if (hilbertIndexFile == null) {
+            LOG.warn("Not building a Hilbert index for a database that is not stored in a named file.");
+            return;
+        }
+        try {
+            HilbertIndex.build(this, hilbertIndexFile);
+            hilbertIndex = HilbertIndex.open(hilbertIndexFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Error occurred while building the Hilbert index " + hilbertIndexFile, e);
+        }
+    }
+
+    /**
+     * @return the static Hilbert index if there is one and it was built from the current state of the database,
+     *         otherwise null in which case the MapDB spatial index must be used.
+     */
+    public HilbertIndex freshHilbertIndex() {
+        HilbertIndex hilbert = hilbertIndex;
+        if (hilbert != null && hilbert.timestamp == timestamp.get()) {
+            return hilbert;
+        }
+        return null;
+    }
+
     // TODO put these read/write methods on all sources/sinks
     public void readFromFile(String filePath) {
         if (reading && !nodes.isEmpty()) {
@@ -307,7 +490,7 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
         if (tile == null) {
             LOG.debug("Attempted insert way {} into the spatial index, but it is not currently in the database.", wayId);
         } else {
-            this.index.add(new Tuple3(tile.xtile, tile.ytile, wayId));
+            this.index.add(TileKey.encode(tile.xtile, tile.ytile, wayId));
         }
     }
 
@@ -318,11 +501,42 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
         } else {
             WebMercatorTile tile = tileForWay(wayId, way);
             if (tile != null) {
-                this.index.remove(new Tuple3(tile.xtile, tile.ytile, wayId));
+                this.index.remove(TileKey.encode(tile.xtile, tile.ytile, wayId));
             }
         }
     }
 
+    /**
+     * Insert the given node into the tile-based spatial index of nodes if it has any tags. Untagged nodes are only
+     * meaningful as parts of ways, and will be found through the ways that reference them.
+     */
+    public void indexNode(long nodeId, Node node) {
+        if (node.hasNoTags()) return;
+        WebMercatorTile tile = new WebMercatorTile(node.getLat(), node.getLon());
+        this.nodeIndex.add(TileKey.encode(tile.xtile, tile.ytile, nodeId));
+    }
+
+    /** Remove the node with the given ID from the spatial index of nodes, based on its current location. */
+    public void unIndexNode(long nodeId) {
+        Node node = nodes.get(nodeId);
+        if (node != null && !node.hasNoTags()) {
+            WebMercatorTile tile = new WebMercatorTile(node.getLat(), node.getLon());
+            this.nodeIndex.remove(TileKey.encode(tile.xtile, tile.ytile, nodeId));
+        }
+    }
+
+    /**
+     * @return the IDs of all the ways that reference the given node, according to the index of ways by node, which
+     *         must be maintained. See indexWaysByNode().
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Fun.HI sorts after any Long, but is not one.
+    public LongStream waysOfNode (long nodeId) {
+        Set<Fun.Tuple2<Long, Long>> waysForNode = waysByNode.subSet(
+                new Fun.Tuple2<Long, Long>(nodeId, null),
+                new Fun.Tuple2(nodeId, Fun.HI));
+        return waysForNode.stream().mapToLong(idx -> idx.b);
+    }
+
     /** @return null if the way is not in the database and therefore can't be located. */
     private WebMercatorTile tileForWay (long wayId, Way way) {
         if (way == null) way = ways.get(wayId); // Way object was not supplied, fetch it from the database.
@@ -339,6 +553,42 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
         }
     }
 
+    /** Record the tile containing the given node as changed, if changes are being tracked. */
+    void trackNodeChange (long nodeId, Node node) {
+        if (changeTracker == null) return;
+        if (node == null) node = nodes.get(nodeId);
+        if (node != null) {
+            WebMercatorTile tile = new WebMercatorTile(node.getLat(), node.getLon());
+            changeTracker.markChanged(tile.xtile, tile.ytile);
+        }
+    }
+
+    /** Record the tile in which the given way is indexed as changed, if changes are being tracked. */
+    void trackWayChange (long wayId, Way way) {
+        if (changeTracker == null) return;
+        WebMercatorTile tile = tileForWay(wayId, way);
+        if (tile != null) {
+            changeTracker.markChanged(tile.xtile, tile.ytile);
+        }
+    }
+
+    /**
+     * Record the tiles of all the node and way members of the given relation as changed, if changes are being tracked.
+     * A relation is included in any extract containing one of its members.
+     */
+    void trackRelationChange (long relationId, Relation relation) {
+        if (changeTracker == null) return;
+        if (relation == null) relation = relations.get(relationId);
+        if (relation == null) return;
+        for (Relation.Member member : relation.members) {
+            if (member.type == OSMEntity.Type.NODE) {
+                trackNodeChange(member.id, null);
+            } else if (member.type == OSMEntity.Type.WAY) {
+                trackWayChange(member.id, null);
+            }
+        }
+    }
+
     /* OSM DATA SINK INTERFACE */
 
     @Override
@@ -363,6 +613,11 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
     @Override
     public void writeNode(long id, Node node) {
         this.nodes.put(id, node);
+
+        // Insert tagged nodes into the tile-based spatial index of nodes.
+        if (tileIndexing) {
+            indexNode(id, node);
+        }
     }
 
     @Override
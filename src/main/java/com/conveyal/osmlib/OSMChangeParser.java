@@ -4,119 +4,226 @@ import gnu.trove.list.TLongList;
 import gnu.trove.list.array.TLongArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
 
 /**
- * A lenient streaming XML parser that reads OSM change files and applies the changes they contain to an OSM database.
+ * A lenient streaming XML parser that reads OSM change files and records the changes they contain in a ChangeSet.
  * It seems like a good idea to abstract out a ChangeSink interface that extends the basic OSM entity sink.
  * However, we need non-streaming behavior here: we want to index all the new ways after applying an entire diff
  * because we have no guarantee that the nodes and ways are coherent at some point partway through the changes.
+ * Several consecutive diffs can be parsed into the same change set, which is then applied to the database at once.
+ *
+ * Elements are pulled from a StAX reader and dispatched on their names, and coordinates are parsed straight into the
+ * fixed-precision representation used by Node, so no intermediate doubles or handler callbacks are involved. A single
+ * parser can be reused for any number of diffs, but only by one thread at a time.
  */
-public class OSMChangeParser extends DefaultHandler {
+public class OSMChangeParser {
 
     private static final Logger LOG = LoggerFactory.getLogger(OSMChangeParser.class);
 
-    OSM osm;
-    boolean inDelete = false; // if false, assume we're in add or modify
-    OSMEntity entity;
-    long id;
-    int nParsed = 0;
-    TLongList nodeRefs = new TLongArrayList();
-    TLongList waysModified = new TLongArrayList();
-
-    public OSMChangeParser(OSM osm) {
-        this.osm = osm;
+    /** Factories are expensive to create but safe to share once configured. */
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
     }
 
-    @Override
-    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+    /** Node coordinates are stored with seven decimal places, the precision of OSM itself. */
+    private static final int FIXED_DECIMALS = 7;
 
-        String idString = attributes.getValue("id");
+    int nParsed = 0;
+    private final TLongList nodeRefs = new TLongArrayList();
 
-        if (qName.equalsIgnoreCase("ADD") || qName.equalsIgnoreCase("MODIFY")) {
-            inDelete = false;
-        } else if (qName.equalsIgnoreCase("DELETE")) {
-            inDelete = true;
-        } else if (qName.equalsIgnoreCase("NODE")) {
-            Node node = new Node();
-            double lat = Double.parseDouble(attributes.getValue("lat"));
-            double lon = Double.parseDouble(attributes.getValue("lon"));
-            node.setLatLon(lat, lon);
-            entity = node;
-            id = idString == null ? -1 : Long.parseLong(idString);
-        } else if (qName.equalsIgnoreCase("WAY")) {
-            Way way = new Way();
-            entity = way;
-            nodeRefs.clear();
-            id = idString == null ? -1 : Long.parseLong(idString);
-        } else if (qName.equalsIgnoreCase("RELATION")) {
-            Relation relation = new Relation();
-            entity = relation;
-            id = idString == null ? -1 : Long.parseLong(idString);
-        } else if (qName.equalsIgnoreCase("TAG")) {
-            entity.addTag(attributes.getValue("k"), attributes.getValue("v"));
-        } else if (qName.equalsIgnoreCase("ND")) {
-            nodeRefs.add(Long.parseLong(attributes.getValue("ref")));
+    /** Read an entire osmChange document from the given stream, recording its changes in the given change set. */
+    public void parse (InputStream inputStream, ChangeSet changeSet) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(inputStream);
+        try {
+            parse(reader, changeSet);
+        } finally {
+            reader.close();
         }
     }
 
-    @Override
-    public void endElement(String uri, String localName, String qName) {
+    private void parse (XMLStreamReader reader, ChangeSet changeSet) throws XMLStreamException {
+        boolean inDelete = false; // if false, assume we're in create or modify
+        boolean inCreate = false;
+        OSMEntity entity = null;
+        long id = -1;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "create":
+                    case "add":
+                        inDelete = false;
+                        inCreate = true;
+                        break;
+                    case "modify":
+                        inDelete = false;
+                        inCreate = false;
+                        break;
+                    case "delete":
+                        inDelete = true;
+                        inCreate = false;
+                        break;
+                    case "node": {
+                        Node node = new Node();
+                        id = -1;
+                        // Deleted nodes may be given without coordinates.
+                        for (int a = 0; a < reader.getAttributeCount(); a++) {
+                            switch (reader.getAttributeLocalName(a)) {
+                                case "id": id = Long.parseLong(reader.getAttributeValue(a)); break;
+                                case "lat": node.fixedLat = parseFixed(reader.getAttributeValue(a)); break;
+                                case "lon": node.fixedLon = parseFixed(reader.getAttributeValue(a)); break;
+                            }
+                        }
+                        entity = node;
+                        break;
+                    }
+                    case "way":
+                        entity = new Way();
+                        nodeRefs.clear();
+                        id = parseId(reader);
+                        break;
+                    case "relation":
+                        entity = new Relation();
+                        id = parseId(reader);
+                        break;
+                    case "tag":
+                        if (entity != null) {
+                            entity.addTag(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+                        }
+                        break;
+                    case "nd":
+                        nodeRefs.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+                        break;
+                    case "member":
+                        if (entity instanceof Relation) {
+                            ((Relation) entity).members.add(parseMember(reader));
+                        }
+                        break;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "create":
+                    case "add":
+                    case "modify":
+                    case "delete":
+                        inDelete = false;
+                        inCreate = false;
+                        break;
+                    case "node":
+                        if (inDelete) {
+                            changeSet.nodes.delete(id);
+                        } else {
+                            changeSet.nodes.put(id, (Node) entity, inCreate);
+                        }
+                        countEntity();
+                        entity = null;
+                        break;
+                    case "way":
+                        if (inDelete) {
+                            changeSet.ways.delete(id);
+                        } else {
+                            Way way = (Way) entity;
+                            way.nodes = nodeRefs.toArray();
+                            changeSet.ways.put(id, way, inCreate);
+                        }
+                        countEntity();
+                        entity = null;
+                        break;
+                    case "relation":
+                        if (inDelete) {
+                            changeSet.relations.delete(id);
+                        } else {
+                            changeSet.relations.put(id, (Relation) entity, inCreate);
+                        }
+                        countEntity();
+                        entity = null;
+                        break;
+                }
+            }
+        }
+    }
 
+    private void countEntity () {
         nParsed++;
         if (nParsed % 1000000 == 0) {
-            LOG.info(" {}M applied", nParsed / 1000000);
+            LOG.info(" {}M parsed", nParsed / 1000000);
         }
+    }
 
-        if (qName.equalsIgnoreCase("DELETE")) {
-            inDelete = false;
-            return;
-        } else if (qName.equalsIgnoreCase("NODE")) {
-            if (inDelete) {
-                osm.nodes.remove(id);
-            } else {
-                osm.nodes.put(id, (Node) entity);
-            }
-        } else if (qName.equalsIgnoreCase("WAY")) {
-            if (inDelete) {
-                // Remove from index before removing the way itself. This allows the remove method to locate the way.
-                osm.unIndexWay(id);
-                osm.ways.remove(id);
-            } else {
-                Way way = ((Way)entity);
-                way.nodes = nodeRefs.toArray();
-                osm.ways.put(id, way);
-                waysModified.add(id); // record that this way was modified for later re-indexing.
-            }
-        } else if (qName.equalsIgnoreCase("RELATION")) {
-            if (inDelete) {
-                osm.relations.remove(id);
-            } else {
-                osm.relations.put(id, (Relation) entity);
-            }
-        }
+    private static long parseId (XMLStreamReader reader) {
+        String idString = reader.getAttributeValue(null, "id");
+        return idString == null ? -1 : Long.parseLong(idString);
     }
 
-    @Override
-    public void startDocument() {
-        waysModified.clear();
-        nParsed = 0;
-        inDelete = false;
+    private static Relation.Member parseMember (XMLStreamReader reader) {
+        Relation.Member member = new Relation.Member();
+        member.id = Long.parseLong(reader.getAttributeValue(null, "ref"));
+        member.role = reader.getAttributeValue(null, "role");
+        String type = reader.getAttributeValue(null, "type");
+        if ("node".equals(type)) {
+            member.type = OSMEntity.Type.NODE;
+        } else if ("way".equals(type)) {
+            member.type = OSMEntity.Type.WAY;
+        } else if ("relation".equals(type)) {
+            member.type = OSMEntity.Type.RELATION;
+        } else {
+            LOG.error("Relation member type {} is unexpected.", type);
+        }
+        return member;
     }
 
-    @Override
-    public void endDocument() {
-        // After the entire diff has been applied, re-index all the ways that were added or modified.
-        if (!waysModified.isEmpty()) {
-            LOG.debug("Indexing modified ways...");
-            for (int w = 0; w < waysModified.size(); w++) {
-                // TODO unless we are doing snapshots and transactions, we should unindex after indexing the new one?
-                osm.unIndexWay(id);
-                osm.indexWay(waysModified.get(w), null);
+    /**
+     * Parse a decimal coordinate directly into a fixed-precision integer with FIXED_DECIMALS decimal places, rounding
+     * any further digits. Anything other than a plain decimal number is handed to Double.parseDouble.
+     */
+    static int parseFixed (String value) {
+        int pos = 0;
+        int length = value.length();
+        boolean negative = false;
+        if (pos < length && (value.charAt(pos) == '-' || value.charAt(pos) == '+')) {
+            negative = value.charAt(pos) == '-';
+            pos++;
+        }
+        long fixed = 0;
+        int decimals = -1; // Number of digits after the decimal point, or -1 before the decimal point.
+        boolean roundUp = false;
+        boolean anyDigits = false;
+        for (; pos < length; pos++) {
+            char c = value.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                anyDigits = true;
+                if (decimals < FIXED_DECIMALS) {
+                    fixed = fixed * 10 + (c - '0');
+                    if (decimals >= 0) decimals++;
+                    if (fixed > Integer.MAX_VALUE) return slowParseFixed(value);
+                } else if (decimals == FIXED_DECIMALS) {
+                    roundUp = c >= '5';
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return slowParseFixed(value);
             }
         }
+        if (!anyDigits) return slowParseFixed(value);
+        for (int d = Math.max(decimals, 0); d < FIXED_DECIMALS; d++) fixed *= 10;
+        if (roundUp) fixed++;
+        if (fixed > Integer.MAX_VALUE) return slowParseFixed(value);
+        return (int) (negative ? -fixed : fixed);
+    }
+
+    private static int slowParseFixed (String value) {
+        return (int) Math.round(Double.parseDouble(value) * Math.pow(10, FIXED_DECIMALS));
     }
 
-}
\ No newline at end of file
+}
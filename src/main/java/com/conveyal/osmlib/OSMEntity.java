@@ -1,19 +1,38 @@
 package com.conveyal.osmlib;
 
-import com.beust.jcommander.internal.Lists;
-
 import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class OSMEntity implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final String[] NO_TAGS = new String[0];
+
+    /** The most distinct tag keys that are shared between entities. See sharedKey(). */
+    private static final int MAX_SHARED_KEYS = 1 << 16;
+
+    /** The single copy of each tag key shared by all entities that have it. */
+    private static final Map<String, String> SHARED_KEYS = new ConcurrentHashMap<>();
+
     public static enum Type {
         NODE, WAY, RELATION;
     }
 
-    public List<Tag> tags;
+    /**
+     * The tags of this entity as a single array of alternating keys and values, or null if it has none. The same few
+     * keys recur across millions of entities, so a single copy of each is shared between them. Most values are unique
+     * to an entity, so they are not.
+     *
+     * Relations are stored in MapDB by reflecting on their fields, and databases written before tags were stored this
+     * way hold a List of Tag under the same field name. The field is typed loosely so those can still be read, and any
+     * such list is converted to an array whenever the tags are used, until they are next changed. See tagArray().
+     */
+    private Serializable tags;
 
     public static class Tag implements Serializable {
         public String key, value;
@@ -36,17 +55,97 @@ public abstract class OSMEntity implements Serializable {
 
     }
 
+    /**
+     * @return the alternating keys and values of the tags, which is empty if there are none. The converted tags of an
+     *         entity read from an older database are not kept, as the entity may be shared between threads.
+     */
+    private String[] tagArray() {
+        Object tags = this.tags;
+        if (tags == null) return NO_TAGS;
+        if (tags instanceof String[]) return (String[]) tags;
+        @SuppressWarnings("unchecked")
+        List<Tag> tagList = (List<Tag>) tags;
+        String[] keysAndValues = new String[tagList.size() * 2];
+        for (int t = 0; t < tagList.size(); t++) {
+            keysAndValues[t * 2] = sharedKey(tagList.get(t).key);
+            keysAndValues[t * 2 + 1] = value(tagList.get(t).value);
+        }
+        return keysAndValues;
+    }
+
+    /**
+     * @return the copy of the given tag key shared by all entities. Only a bounded number of distinct keys are shared,
+     *         so that unusual keys cannot fill memory, and any others are kept as they are.
+     */
+    private static String sharedKey(String key) {
+        String shared = SHARED_KEYS.get(key);
+        if (shared != null) return shared;
+        if (SHARED_KEYS.size() >= MAX_SHARED_KEYS) return key;
+        shared = SHARED_KEYS.putIfAbsent(key, key);
+        return shared == null ? key : shared;
+    }
+
+    /** @return the given tag value, where a missing value is empty as in OSM itself. */
+    private static String value(String value) {
+        return value == null ? "" : value;
+    }
+
+    /** @return the number of tags on this entity. */
+    public int getTagCount() {
+        return tagArray().length / 2;
+    }
+
+    /** @return the key of the tag at the given position, from zero to getTagCount() - 1. */
+    public String getTagKey(int index) {
+        return tagArray()[index * 2];
+    }
+
+    /** @return the value of the tag at the given position, from zero to getTagCount() - 1. */
+    public String getTagValue(int index) {
+        return tagArray()[index * 2 + 1];
+    }
+
+    /**
+     * This replaces the public list of tags of earlier versions, for code that expects a list. Each Tag in it is a copy
+     * created on demand, so changing its key or value fields does not change the entity. Use set() on the list,
+     * addOrReplaceTag() or setTags() to change tags, and addTag() to add them.
+     * @return a view of the tags as a list.
+     */
+    public List<Tag> getTags() {
+        return new AbstractList<Tag>() {
+            @Override
+            public Tag get(int index) {
+                return new Tag(getTagKey(index), getTagValue(index));
+            }
+
+            @Override
+            public Tag set(int index, Tag tag) {
+                Tag previous = get(index);
+                String[] keysAndValues = tagArray();
+                keysAndValues[index * 2] = sharedKey(tag.key);
+                keysAndValues[index * 2 + 1] = value(tag.value);
+                tags = keysAndValues;
+                return previous;
+            }
+
+            @Override
+            public int size() {
+                return getTagCount();
+            }
+        };
+    }
+
     /** Return the tag value for the given key. Returns null if the tag key is not present. */
     public String getTag(String key) {
-        if (tags == null) return null;
-        for (Tag tag : tags) {
-            if (tag.key.equals(key)) {
-                return tag.value;
+        String[] keysAndValues = tagArray();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (keysAndValues[i].equals(key)) {
+                return keysAndValues[i + 1];
             }
         }
         return null;
     }
-    
+
     public boolean hasTag(String key) {
         return (getTag(key) != null);
     }
@@ -56,7 +155,7 @@ public abstract class OSMEntity implements Serializable {
     }
 
     public boolean hasNoTags() {
-        return tags == null || tags.isEmpty();
+        return tagArray().length == 0;
     }
 
     public boolean tagIsTrue (String key) {
@@ -81,34 +180,47 @@ public abstract class OSMEntity implements Serializable {
         }
     }
 
-    public void addTag (String key, String value) {
-        if (tags == null) {
-            tags = Lists.newArrayList();
+    /**
+     * Replace all the tags of this entity, which then owns the given array. Readers that know how many tags an entity
+     * has should use this rather than addTag(), which copies the tags each time one is added.
+     * @param keysAndValues alternating keys and values of the tags.
+     */
+    public void setTags (String... keysAndValues) {
+        if (keysAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("Tags must be given as pairs of keys and values.");
+        }
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            keysAndValues[i] = sharedKey(keysAndValues[i]);
+            keysAndValues[i + 1] = value(keysAndValues[i + 1]);
         }
-        tags.add(new Tag(key, value));
+        tags = keysAndValues.length == 0 ? null : keysAndValues;
+    }
+
+    public void addTag (String key, String value) {
+        String[] keysAndValues = tagArray();
+        keysAndValues = Arrays.copyOf(keysAndValues, keysAndValues.length + 2);
+        keysAndValues[keysAndValues.length - 2] = sharedKey(key);
+        keysAndValues[keysAndValues.length - 1] = value(value);
+        tags = keysAndValues;
     }
 
     public void addOrReplaceTag (String key, String value) {
-        if (tags == null) {
-            tags = Lists.newArrayList();
-        }
-        for (Tag tag : tags) {
-            if (tag.key.equalsIgnoreCase(key)) {
-                tag.value = value;
+        String[] keysAndValues = tagArray();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (keysAndValues[i].equalsIgnoreCase(key)) {
+                keysAndValues[i + 1] = value(value);
+                tags = keysAndValues;
                 return;
             }
         }
-        tags.add(new Tag(key, value));
+        addTag(key, value);
     }
 
     public boolean tagsEqual (OSMEntity other) {
-        if (this.hasNoTags()) {
-            return other.hasNoTags();
-        }
-        return this.tags.equals(other.tags);
+        return Arrays.equals(this.tagArray(), other.tagArray());
     }
 
     /** This feels strange because we're using Enums to duplicate Java type data (Node.class) */
     public abstract Type getType();
-    
+
 }
@@ -28,6 +28,12 @@ public interface OSMEntitySink {
 
     void writeEnd() throws IOException;
 
+    /**
+     * Give up on writing after an error or cancellation, without completing the output. Any threads started by the
+     * sink are stopped. The output is left in an unusable state.
+     */
+    default void abort() {}
+
     static OSMEntitySink forFile (String path) {
         try {
             OutputStream outputStream = new FileOutputStream(path);
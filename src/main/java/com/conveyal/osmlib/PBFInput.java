@@ -26,7 +26,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntUnaryOperator;
 
 /**
  * An OpenStreetMap entity source that reads from the PBF Format. This class implements callbacks for
@@ -37,6 +39,9 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
 
     protected static final Logger LOG = LoggerFactory.getLogger(PBFInput.class);
 
+    private static final Metrics.Counter ENTITIES = new Metrics.Counter("osmlib_pbf_input_entities_total",
+            "Entities read from PBF input.", "type");
+
     private long nodeCount = 0;
     private long wayCount = 0;
     private long relationCount = 0;
@@ -59,20 +64,35 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
 //        return false;
     }
 
+    /**
+     * Set all the retained tags of an entity at once.
+     * @param keyIds the string table IDs of the keys, by tag number from zero to nTags - 1.
+     * @param valueIds the string table IDs of the values, by tag number.
+     */
+    private void setTags(OSMEntity entity, int nTags, IntUnaryOperator keyIds, IntUnaryOperator valueIds) {
+        if (nTags == 0) return;
+        String[] keysAndValues = new String[nTags * 2];
+        int n = 0;
+        for (int t = 0; t < nTags; t++) {
+            String key = getStringById(keyIds.applyAsInt(t));
+            if (!retainTag(key)) continue;
+            keysAndValues[n++] = key;
+            keysAndValues[n++] = getStringById(valueIds.applyAsInt(t));
+        }
+        entity.setTags(n == keysAndValues.length ? keysAndValues : Arrays.copyOf(keysAndValues, n));
+    }
+
     /** Note that in many PBF files this function is never called because all nodes are dense. */
     @Override
     protected void parseNodes(List<Osmformat.Node> nodes) {
+        ENTITIES.labels("node").add(nodes.size());
         try {
             for (Osmformat.Node n : nodes) {
                 if (nodeCount++ % 10000000 == 0) {
                     LOG.info("node {}", human(nodeCount));
                 }
                 Node node = new Node(parseLat(n.getLat()), parseLon(n.getLon()));
-                for (int k = 0; k < n.getKeysCount(); k++) {
-                    String key = getStringById(n.getKeys(k));
-                    String val = getStringById(n.getVals(k));
-                    if (retainTag(key)) node.addTag(key, val);
-                }
+                setTags(node, n.getKeysCount(), n::getKeys, n::getVals);
                 entitySink.writeNode(n.getId(), node);
             }
         } catch (IOException ex) {
@@ -89,6 +109,7 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
     protected void parseDense(Osmformat.DenseNodes nodes) {
         long lastId = 0, lastLat = 0, lastLon = 0;
         int kv = 0; // index into the keysvals array
+        ENTITIES.labels("node").add(nodes.getIdCount());
         try {
             for (int n = 0; n < nodes.getIdCount(); n++) {
                 if (nodeCount++ % 5000000 == 0) {
@@ -104,13 +125,11 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
                 node.setLatLon(parseLat(lat), parseLon(lon));
                 // Check whether any node has tags.
                 if (nodes.getKeysValsCount() > 0) {
-                    while (nodes.getKeysVals(kv) != 0) {
-                        int kid = nodes.getKeysVals(kv++);
-                        int vid = nodes.getKeysVals(kv++);
-                        String key = getStringById(kid);
-                        String val = getStringById(vid);
-                        if (retainTag(key)) node.addTag(key, val);
-                    }
+                    // The keys and values of each node are interleaved, up to a '0' delimiter.
+                    int start = kv;
+                    while (nodes.getKeysVals(kv) != 0) kv += 2;
+                    setTags(node, (kv - start) / 2, t -> nodes.getKeysVals(start + t * 2),
+                            t -> nodes.getKeysVals(start + t * 2 + 1));
                     kv++; // Skip over the '0' delimiter.
                 }
                 entitySink.writeNode(id, node);
@@ -123,6 +142,7 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
 
     @Override
     protected void parseWays(List<Osmformat.Way> ways) {
+        ENTITIES.labels("way").add(ways.size());
         try {
             for (Osmformat.Way w : ways) {
                 if (wayCount++ % 1000000 == 0) {
@@ -130,11 +150,7 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
                 }
                 Way way = new Way();
                 /* Handle tags */
-                for (int k = 0; k < w.getKeysCount(); k++) {
-                    String key = getStringById(w.getKeys(k));
-                    String val = getStringById(w.getVals(k));
-                    if (retainTag(key)) way.addTag(key, val);
-                }
+                setTags(way, w.getKeysCount(), w::getKeys, w::getVals);
                 /* Handle nodes */
                 List<Long> rl = w.getRefsList();
                 long[] nodes = new long[rl.size()];
@@ -154,6 +170,7 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
 
     @Override
     protected void parseRelations(List<Osmformat.Relation> rels) {
+        ENTITIES.labels("relation").add(rels.size());
         try {
             for (Osmformat.Relation r : rels) {
                 if (relationCount++ % 100000 == 0) {
@@ -161,11 +178,7 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
                 }
                 Relation rel = new Relation();
                 /* Handle Tags */
-                for (int k = 0; k < r.getKeysCount(); k++) {
-                    String key = getStringById(r.getKeys(k));
-                    String val = getStringById(r.getVals(k));
-                    if (retainTag(key)) rel.addTag(key, val);
-                }
+                setTags(rel, r.getKeysCount(), r::getKeys, r::getVals);
                 /* Handle members of the relation */
                 long mid = 0; // member ids, delta coded
                 for (int m = 0; m < r.getMemidsCount(); m++) {
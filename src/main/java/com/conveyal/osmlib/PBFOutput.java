@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
 
 /**
@@ -21,6 +22,9 @@ public class PBFOutput implements OSMEntitySink, Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(PBFOutput.class);
 
+    private static final Metrics.Counter DEFLATE_SECONDS = new Metrics.Counter("osmlib_pbf_output_deflate_seconds_total",
+            "Time spent compressing blocks of PBF output.");
+
     /** The underlying output stream where VEX data will be written. */
     private OutputStream downstream;
 
@@ -44,7 +48,9 @@ public class PBFOutput implements OSMEntitySink, Runnable {
     private Osmformat.DenseNodes.Builder denseNodesBuilder;
 
     private Thread writerThread = null;
-    private Thread readerThread = null;
+
+    /** Set by the writer thread if it fails, after which no more blocks will be accepted. */
+    private volatile Exception writerFailure = null;
 
     /** Construct a new PBF output encoder which writes to the given downstream OutputStream. */
     public PBFOutput(OutputStream downstream) {
@@ -71,7 +77,7 @@ public class PBFOutput implements OSMEntitySink, Runnable {
             try {
                 Osmformat.PrimitiveBlock primitiveBlock = Osmformat.PrimitiveBlock.newBuilder()
                         .setStringtable(stringTable.toBuilder()).addPrimitivegroup(primitiveGroupBuilder).build();
-                synchronousQueue.put(primitiveBlock);
+                handOff(primitiveBlock);
             } catch (InterruptedException e) {
                 throw new IOException(e);
             }
@@ -97,7 +103,9 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         Fileformat.Blob.Builder blobBuilder = Fileformat.Blob.newBuilder();
         byte[] serializedBlock = block.toByteArray();
         byte[] deflatedBlock = new byte[serializedBlock.length];
+        long startNanos = System.nanoTime();
         int deflatedSize = deflate(serializedBlock, deflatedBlock);
+        DEFLATE_SECONDS.add((System.nanoTime() - startNanos) / 1e9);
         if (deflatedSize < 0) {
             LOG.debug("Deflate did not reduce the size of a block. Saving it uncompressed.");
             blobBuilder.setRaw(ByteString.copyFrom(serializedBlock));
@@ -169,10 +177,9 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         }
         writeOneBlob(builder.build());
 
-        readerThread = Thread.currentThread();
         // Start another thread that will handle compression and writing in parallel.
         writerThread = new Thread(this);
-        writerThread.setName("PBF-Writer for " + readerThread.getName());
+        writerThread.setName("PBF-Writer for " + Thread.currentThread().getName());
         writerThread.start();
 
     }
@@ -188,14 +195,41 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         endBlock();
         // Send a primitive block with no primitive group to the writer thread, signaling it to shut down and clean up.
         try {
-            synchronousQueue.put(Osmformat.PrimitiveBlock.getDefaultInstance());
+            handOff(Osmformat.PrimitiveBlock.getDefaultInstance());
             writerThread.join();
         } catch (InterruptedException e) {
             throw new IOException(e);
         }
+        if (writerFailure != null) {
+            throw new IOException("Error occurred while writing PBF output.", writerFailure);
+        }
         LOG.info("Finished writing PBF format.");
     }
 
+    /**
+     * Wait for the writer thread to take the given block. Rather than waiting forever if the writer thread has failed
+     * (for example because the client downloading the output has gone away), report its failure.
+     */
+    private void handOff(Osmformat.PrimitiveBlock block) throws IOException, InterruptedException {
+        while (!synchronousQueue.offer(block, 1, TimeUnit.SECONDS)) {
+            if (writerFailure != null || !writerThread.isAlive()) {
+                throw new IOException("PBF writer thread has stopped.", writerFailure);
+            }
+        }
+    }
+
+    /** Stop the writer thread without writing any more blocks. */
+    @Override
+    public void abort() {
+        if (writerThread == null) return;
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void writeNode(long id, Node node) throws IOException {
 
@@ -215,14 +249,11 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         denseNodesBuilder.addLat(fixedLatDelta).addLon(fixedLonDelta);
 
         /* Tags for a whole dense node block are stored as: key, val, key, val, 0, key, val, key, val, 0 */
-        if (node.tags != null) {
-            for (OSMEntity.Tag tag : node.tags) {
-                if (tag.value == null) tag.value = "";
-                int keyCode = stringTable.getCode(tag.key);
-                int valCode = stringTable.getCode(tag.value);
-                denseNodesBuilder.addKeysVals(keyCode);
-                denseNodesBuilder.addKeysVals(valCode);
-            }
+        for (int t = 0; t < node.getTagCount(); t++) {
+            int keyCode = stringTable.getCode(node.getTagKey(t));
+            int valCode = stringTable.getCode(node.getTagValue(t));
+            denseNodesBuilder.addKeysVals(keyCode);
+            denseNodesBuilder.addKeysVals(valCode);
         }
         denseNodesBuilder.addKeysVals(0);
 
@@ -235,12 +266,9 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         Osmformat.Way.Builder builder = Osmformat.Way.newBuilder().setId(id);
 
         /* Tags */
-        if (way.tags != null) {
-            for (OSMEntity.Tag tag : way.tags) {
-                if (tag.value == null) tag.value = "";
-                builder.addKeys(stringTable.getCode(tag.key));
-                builder.addVals(stringTable.getCode(tag.value));
-            }
+        for (int t = 0; t < way.getTagCount(); t++) {
+            builder.addKeys(stringTable.getCode(way.getTagKey(t)));
+            builder.addVals(stringTable.getCode(way.getTagValue(t)));
         }
 
         /* Node References */
@@ -262,12 +290,9 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         Osmformat.Relation.Builder builder = Osmformat.Relation.newBuilder().setId(id);
 
         /* Tags */
-        if (relation.tags != null) {
-            for (OSMEntity.Tag tag : relation.tags) {
-                if (tag.value == null) tag.value = "";
-                builder.addKeys(stringTable.getCode(tag.key));
-                builder.addVals(stringTable.getCode(tag.value));
-            }
+        for (int t = 0; t < relation.getTagCount(); t++) {
+            builder.addKeys(stringTable.getCode(relation.getTagKey(t)));
+            builder.addVals(stringTable.getCode(relation.getTagValue(t)));
         }
 
         /* Relation members */
@@ -307,9 +332,14 @@ public class PBFOutput implements OSMEntitySink, Runnable {
                     break; // a block with no primitive groups tells the writer thread to shut down.
                 }
                 writeOneBlob(block);
-            } catch (InterruptedException|IOException ex) {
-                LOG.error("Writer thread was interrupted while waiting for work: {}. Interrupting reader thread '{}'", ex.getMessage(), readerThread.getName());
-                readerThread.interrupt();
+            } catch (InterruptedException ex) {
+                LOG.debug("PBF writer thread was interrupted.");
+                writerFailure = ex;
+                break;
+            } catch (IOException | RuntimeException ex) {
+                // Stop here. The thread producing blocks will notice this failure instead of waiting on this thread.
+                LOG.error("Writing PBF output failed: {}", ex.getMessage());
+                writerFailure = ex;
                 break;
             }
         }
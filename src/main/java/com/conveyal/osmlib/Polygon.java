@@ -0,0 +1,264 @@
+package com.conveyal.osmlib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A polygon or multipolygon in WGS84 coordinates, used to clip extracts to irregular regions.
+ *
+ * All rings of all polygons are combined with the even-odd rule, so holes are handled without distinguishing inner
+ * from outer rings, as long as the polygons of a multipolygon do not overlap one another. Edges are straight lines in
+ * latitude and longitude, as in WKT and GeoJSON.
+ */
+public class Polygon {
+
+    /** Tile classifications returned by classifyTiles(). */
+    public static final byte OUTSIDE = 0, INSIDE = 1, BOUNDARY = 2;
+
+    private static final Pattern WKT_RING = Pattern.compile("\\(([^()]*)\\)");
+
+    /** Each ring is stored as alternating longitudes and latitudes, closed (the first point is repeated at the end). */
+    private final List<double[]> rings = new ArrayList<>();
+
+    public final double minLat, minLon, maxLat, maxLon;
+
+    private Polygon (List<double[]> rings) {
+        if (rings.isEmpty()) {
+            throw new IllegalArgumentException("Polygon has no rings.");
+        }
+        double minLat = Double.POSITIVE_INFINITY, minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (double[] ring : rings) {
+            if (ring.length < 6) {
+                throw new IllegalArgumentException("Polygon ring has fewer than three points.");
+            }
+            if (ring[0] != ring[ring.length - 2] || ring[1] != ring[ring.length - 1]) {
+                double[] closed = new double[ring.length + 2];
+                System.arraycopy(ring, 0, closed, 0, ring.length);
+                closed[ring.length] = ring[0];
+                closed[ring.length + 1] = ring[1];
+                ring = closed;
+            }
+            for (int i = 0; i < ring.length; i += 2) {
+                double lon = ring[i], lat = ring[i + 1];
+                if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+                    throw new IllegalArgumentException("Polygon coordinate out of range: " + lon + " " + lat);
+                }
+                minLon = Math.min(minLon, lon);
+                maxLon = Math.max(maxLon, lon);
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+            }
+            this.rings.add(ring);
+        }
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.maxLat = maxLat;
+        this.maxLon = maxLon;
+    }
+
+    /** Parse a polygon from either GeoJSON (anything starting with a curly brace) or WKT. */
+    public static Polygon parse (String text) {
+        text = text.trim();
+        return text.startsWith("{") ? fromGeoJson(text) : fromWkt(text);
+    }
+
+    /** Parse a WKT POLYGON or MULTIPOLYGON. */
+    public static Polygon fromWkt (String wkt) {
+        String upper = wkt.trim().toUpperCase(Locale.ROOT);
+        if (!upper.startsWith("POLYGON") && !upper.startsWith("MULTIPOLYGON")) {
+            throw new IllegalArgumentException("Only WKT POLYGON and MULTIPOLYGON geometries are supported.");
+        }
+        List<double[]> rings = new ArrayList<>();
+        // Every innermost pair of parentheses holds one ring, whatever the nesting depth of the geometry type.
+        Matcher matcher = WKT_RING.matcher(wkt);
+        while (matcher.find()) {
+            String[] points = matcher.group(1).split(",");
+            double[] ring = new double[points.length * 2];
+            for (int i = 0; i < points.length; i++) {
+                String[] coords = points[i].trim().split("\\s+");
+                if (coords.length < 2) {
+                    throw new IllegalArgumentException("Malformed WKT point: " + points[i]);
+                }
+                ring[i * 2] = Double.parseDouble(coords[0]);
+                ring[i * 2 + 1] = Double.parseDouble(coords[1]);
+            }
+            rings.add(ring);
+        }
+        return new Polygon(rings);
+    }
+
+    /**
+     * Parse the Polygon and MultiPolygon geometries in a GeoJSON geometry, Feature or FeatureCollection. Only the
+     * coordinate arrays are read, so this does not validate the rest of the document.
+     */
+    public static Polygon fromGeoJson (String json) {
+        List<double[]> rings = new ArrayList<>();
+        int pos = 0;
+        while ((pos = json.indexOf("\"coordinates\"", pos)) >= 0) {
+            pos = json.indexOf(':', pos);
+            if (pos < 0) break;
+            int[] cursor = new int[] { pos + 1 };
+            collectRings(parseJsonValue(json, cursor), rings);
+            pos = cursor[0];
+        }
+        return new Polygon(rings);
+    }
+
+    /** Find every array of positions in a nested GeoJSON coordinates array. */
+    private static void collectRings (Object coordinates, List<double[]> rings) {
+        if (!(coordinates instanceof List)) {
+            throw new IllegalArgumentException("GeoJSON coordinates must be arrays.");
+        }
+        List<?> list = (List<?>) coordinates;
+        if (list.isEmpty()) return;
+        Object first = list.get(0);
+        if (first instanceof List && !((List<?>) first).isEmpty() && ((List<?>) first).get(0) instanceof Double) {
+            double[] ring = new double[list.size() * 2];
+            for (int i = 0; i < list.size(); i++) {
+                List<?> position = (List<?>) list.get(i);
+                ring[i * 2] = (Double) position.get(0);
+                ring[i * 2 + 1] = (Double) position.get(1);
+            }
+            rings.add(ring);
+        } else {
+            for (Object child : list) collectRings(child, rings);
+        }
+    }
+
+    /** Parse a JSON array of arrays and numbers, as found in GeoJSON coordinates, advancing the cursor past it. */
+    private static Object parseJsonValue (String json, int[] cursor) {
+        int pos = skipWhitespace(json, cursor[0]);
+        if (pos >= json.length()) {
+            throw new IllegalArgumentException("Unexpected end of GeoJSON.");
+        }
+        if (json.charAt(pos) == '[') {
+            List<Object> list = new ArrayList<>();
+            pos = skipWhitespace(json, pos + 1);
+            if (pos < json.length() && json.charAt(pos) == ']') {
+                cursor[0] = pos + 1;
+                return list;
+            }
+            while (true) {
+                cursor[0] = pos;
+                list.add(parseJsonValue(json, cursor));
+                pos = skipWhitespace(json, cursor[0]);
+                if (pos >= json.length()) {
+                    throw new IllegalArgumentException("Unexpected end of GeoJSON.");
+                }
+                char c = json.charAt(pos++);
+                if (c == ']') break;
+                if (c != ',') {
+                    throw new IllegalArgumentException("Unexpected character in GeoJSON coordinates: " + c);
+                }
+            }
+            cursor[0] = pos;
+            return list;
+        }
+        int end = pos;
+        while (end < json.length() && "+-.0123456789eE".indexOf(json.charAt(end)) >= 0) end++;
+        if (end == pos) {
+            throw new IllegalArgumentException("Unexpected character in GeoJSON coordinates: " + json.charAt(pos));
+        }
+        cursor[0] = end;
+        return Double.parseDouble(json.substring(pos, end));
+    }
+
+    private static int skipWhitespace (String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) pos++;
+        return pos;
+    }
+
+    /** @return whether the given point is inside the polygon, using the even-odd rule over all rings. */
+    public boolean contains (double lat, double lon) {
+        if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) return false;
+        boolean inside = false;
+        for (double[] ring : rings) {
+            for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+                double lonI = ring[i], latI = ring[i + 1], lonJ = ring[j], latJ = ring[j + 1];
+                if ((latI > lat) != (latJ > lat) && lon < (lonJ - lonI) * (lat - latI) / (latJ - latI) + lonI) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    public boolean contains (Node node) {
+        return contains(node.getLat(), node.getLon());
+    }
+
+    /**
+     * Classify each zoom 12 web Mercator tile in the given range as entirely inside the polygon, entirely outside it,
+     * or crossed by its boundary. Only the tiles touched by each edge are tested against that edge, and the remaining
+     * tiles are then classified by a single point-in-polygon test on their center.
+     * @return one classification per tile, with the x tile number varying fastest.
+     */
+    public byte[] classifyTiles (int minX, int minY, int maxX, int maxY) {
+        int width = maxX - minX + 1;
+        int height = maxY - minY + 1;
+        byte[] classes = new byte[width * height];
+        for (double[] ring : rings) {
+            for (int i = 2; i < ring.length; i += 2) {
+                double lon0 = ring[i - 2], lat0 = ring[i - 1], lon1 = ring[i], lat1 = ring[i + 1];
+                WebMercatorTile tile0 = new WebMercatorTile(lat0, lon0);
+                WebMercatorTile tile1 = new WebMercatorTile(lat1, lon1);
+                int x0 = Math.max(minX, Math.min(tile0.xtile, tile1.xtile));
+                int x1 = Math.min(maxX, Math.max(tile0.xtile, tile1.xtile));
+                int y0 = Math.max(minY, Math.min(tile0.ytile, tile1.ytile));
+                int y1 = Math.min(maxY, Math.max(tile0.ytile, tile1.ytile));
+                for (int y = y0; y <= y1; y++) {
+                    double north = WebMercatorTile.tileNorthLat(y);
+                    double south = WebMercatorTile.tileNorthLat(y + 1);
+                    for (int x = x0; x <= x1; x++) {
+                        int t = (y - minY) * width + (x - minX);
+                        if (classes[t] == BOUNDARY) continue;
+                        double west = WebMercatorTile.tileWestLon(x);
+                        double east = WebMercatorTile.tileWestLon(x + 1);
+                        if (segmentIntersectsRectangle(lon0, lat0, lon1, lat1, west, south, east, north)) {
+                            classes[t] = BOUNDARY;
+                        }
+                    }
+                }
+            }
+        }
+        for (int y = minY; y <= maxY; y++) {
+            double centerLat = (WebMercatorTile.tileNorthLat(y) + WebMercatorTile.tileNorthLat(y + 1)) / 2;
+            for (int x = minX; x <= maxX; x++) {
+                int t = (y - minY) * width + (x - minX);
+                if (classes[t] == BOUNDARY) continue;
+                double centerLon = (WebMercatorTile.tileWestLon(x) + WebMercatorTile.tileWestLon(x + 1)) / 2;
+                classes[t] = contains(centerLat, centerLon) ? INSIDE : OUTSIDE;
+            }
+        }
+        return classes;
+    }
+
+    /** Liang-Barsky line clipping, reduced to a yes or no answer. */
+    private static boolean segmentIntersectsRectangle (double x0, double y0, double x1, double y1,
+                                                       double minX, double minY, double maxX, double maxY) {
+        double dx = x1 - x0, dy = y1 - y0;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x0 - minX, maxX - x0, y0 - minY, maxY - y0 };
+        double t0 = 0, t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) return false;
+            } else {
+                double r = q[i] / p[i];
+                if (p[i] < 0) {
+                    if (r > t1) return false;
+                    if (r > t0) t0 = r;
+                } else {
+                    if (r < t0) return false;
+                    if (r < t1) t1 = r;
+                }
+            }
+        }
+        return true;
+    }
+
+}
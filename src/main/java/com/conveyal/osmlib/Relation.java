@@ -47,7 +47,7 @@ public class Relation extends OSMEntity implements Serializable {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("relation with tags ");
-        sb.append(tags);
+        sb.append(getTags());
         sb.append('\n');
         for (Member member : members) {
             sb.append("  ");
@@ -0,0 +1,57 @@
+package com.conveyal.osmlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Somewhere replication updates (diffs) can be read from, laid out like the replication tree of the OSM planet server.
+ * The latest state is in state.txt, and each diff in AAA/BBB/CCC.osc.gz next to its state in AAA/BBB/CCC.state.txt,
+ * where AAABBBCCC is the sequence number of the diff.
+ */
+public interface ReplicationSource {
+
+    /**
+     * @return the contents of the state file of the diff with the given sequence number, or of the latest state if
+     *         the sequence number is zero.
+     */
+    InputStream openState(int sequenceNumber) throws IOException;
+
+    /** @return the gzip-compressed osmChange document of the diff with the given sequence number. */
+    InputStream openChange(int sequenceNumber) throws IOException;
+
+    /** @return where the state file for the given sequence number (or the latest state if zero) is found, for logging. */
+    String describeState(int sequenceNumber);
+
+    /** @return the path of the files for the given sequence number within the replication tree, without extension. */
+    static String path(int sequenceNumber) {
+        int a = sequenceNumber / 1000000;
+        int b = (sequenceNumber - (a * 1000000)) / 1000;
+        int c = (sequenceNumber - (a * 1000000) - (b * 1000));
+        return String.format(Locale.US, "%03d/%03d/%03d", a, b, c);
+    }
+
+    /** @return the name of the state file for the given sequence number, or of the latest state if zero. */
+    static String stateFile(int sequenceNumber) {
+        return sequenceNumber > 0 ? path(sequenceNumber) + ".state.txt" : "state.txt";
+    }
+
+    static ReplicationSource forUrl(String baseUrl) {
+        return new UrlReplicationSource(baseUrl);
+    }
+
+    static ReplicationSource forDirectory(File directory) {
+        return new DirectoryReplicationSource(directory);
+    }
+
+    /** @return a source reading from the given URL if it has a scheme, or from the given local directory otherwise. */
+    static ReplicationSource forLocation(String location) {
+        if (location.contains("://") || location.startsWith("file:")) {
+            return forUrl(location);
+        } else {
+            return forDirectory(new File(location));
+        }
+    }
+
+}
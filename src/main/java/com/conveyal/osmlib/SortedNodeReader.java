@@ -0,0 +1,144 @@
+package com.conveyal.osmlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pipeline stage that fetches a sorted list of nodes from the database in a separate thread, a batch at a time,
+ * reading ahead of the consumer.
+ *
+ * Fetching nodes one by one in the order they are referenced by ways jumps around the whole B-tree. Fetching them in
+ * ascending ID order instead visits each B-tree leaf at most once and in file order. Where the requested IDs are dense
+ * enough, a run of them is read with a single range scan over the tree rather than one lookup per node: MapDB stores
+ * values inside the leaves and deserializes a whole leaf for every lookup, so a range scan is cheaper whenever more
+ * than a few nodes per leaf are needed.
+ */
+public class SortedNodeReader implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SortedNodeReader.class);
+
+    /** The number of nodes fetched in each batch handed to the consumer. */
+    private static final int BATCH_SIZE = 4096;
+
+    /** The number of batches that may be fetched ahead of the consumer. */
+    private static final int READ_AHEAD = 4;
+
+    /**
+     * A range scan is used for a batch when at least one in this many of the IDs it spans are requested.
+     * This is on the order of the number of entries in a MapDB B-tree leaf.
+     */
+    private static final int SCAN_DENSITY = 32;
+
+    /** This special instance is handed to the consumer to indicate there will be no more batches. */
+    private static final Batch END_BATCH = new Batch(new long[0]);
+
+    private final Map<Long, Node> nodes;
+
+    private final long[] sortedIds;
+
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(READ_AHEAD);
+
+    private final Thread thread;
+
+    /** A block of consecutive requested node IDs, and the nodes found for them (null where a node is missing). */
+    public static class Batch {
+        public final long[] ids;
+        public final Node[] nodes;
+        Throwable exception;
+        Batch (long[] ids) {
+            this.ids = ids;
+            this.nodes = new Node[ids.length];
+        }
+    }
+
+    /**
+     * Construct a new SortedNodeReader, which then runs itself in a parallel thread.
+     * @param sortedIds the IDs of the nodes to fetch, in ascending order and without duplicates.
+     */
+    public SortedNodeReader(Map<Long, Node> nodes, long[] sortedIds) {
+        this.nodes = nodes;
+        this.sortedIds = sortedIds;
+        thread = new Thread(this);
+        thread.setName("Node-Reader for " + Thread.currentThread().getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for the next batch of nodes to become available, then return it.
+     * @return the next batch, or null if all nodes have been read.
+     */
+    public Batch nextBatch() throws IOException {
+        Batch batch;
+        try {
+            batch = queue.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for nodes to be read.", e);
+        }
+        if (batch.exception != null) {
+            throw new IOException("Error occurred while reading nodes.", batch.exception);
+        }
+        return batch == END_BATCH ? null : batch;
+    }
+
+    /** Stop reading ahead. This must be called if the consumer stops before taking all batches. */
+    public void close() {
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int start = 0; start < sortedIds.length; start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, sortedIds.length);
+                long[] ids = new long[end - start];
+                System.arraycopy(sortedIds, start, ids, 0, ids.length);
+                Batch batch = new Batch(ids);
+                try {
+                    fetch(batch);
+                } catch (Throwable t) {
+                    // MapDB reports storage failures as IOError, which must reach the consumer as well, or it would
+                    // wait forever for a batch.
+                    batch.exception = t;
+                    queue.put(batch);
+                    return;
+                }
+                queue.put(batch);
+            }
+            queue.put(END_BATCH);
+        } catch (InterruptedException e) {
+            LOG.debug("Node reader was closed before all nodes were read.");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fetch (Batch batch) {
+        long[] ids = batch.ids;
+        long first = ids[0];
+        long last = ids[ids.length - 1];
+        if (nodes instanceof NavigableMap && (last - first) / SCAN_DENSITY < ids.length) {
+            // Merge the requested IDs with the sequence of nodes in the range they span.
+            NavigableMap<Long, Node> range = ((NavigableMap<Long, Node>) nodes).subMap(first, true, last, true);
+            int i = 0;
+            for (Map.Entry<Long, Node> entry : range.entrySet()) {
+                long id = entry.getKey();
+                while (ids[i] < id) i++; // Requested nodes that are not in the database remain null.
+                if (ids[i] == id) {
+                    batch.nodes[i++] = entry.getValue();
+                    if (i == ids.length) break;
+                }
+            }
+        } else {
+            for (int i = 0; i < ids.length; i++) {
+                batch.nodes[i] = nodes.get(ids[i]);
+            }
+        }
+    }
+
+}
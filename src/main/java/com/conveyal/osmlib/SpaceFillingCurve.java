@@ -0,0 +1,130 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Space filling curves over the grid of web Mercator tiles at the zoom level of the spatial index.
+ * Every power-of-two-aligned square block of tiles is visited contiguously by these curves, so any rectangle of tiles
+ * can be decomposed into a small number of contiguous ranges along the curve, which can then be found in any
+ * one-dimensional sorted structure (a B-tree or a sorted array) with one range scan each.
+ */
+public enum SpaceFillingCurve {
+
+    HILBERT {
+        @Override
+        public long encode(int x, int y) {
+            long d = 0;
+            for (int s = GRID_SIZE / 2; s > 0; s /= 2) {
+                int rx = (x & s) > 0 ? 1 : 0;
+                int ry = (y & s) > 0 ? 1 : 0;
+                d += (long) s * s * ((3 * rx) ^ ry);
+                // Rotate the quadrant so the sub-curve has the right orientation.
+                if (ry == 0) {
+                    if (rx == 1) {
+                        x = GRID_SIZE - 1 - x;
+                        y = GRID_SIZE - 1 - y;
+                    }
+                    int t = x;
+                    x = y;
+                    y = t;
+                }
+            }
+            return d;
+        }
+    },
+
+    /** The Z-order curve, which simply interleaves the bits of the x (even bits) and y (odd bits) coordinates. */
+    MORTON {
+        @Override
+        public long encode(int x, int y) {
+            return spread(x) | (spread(y) << 1);
+        }
+    };
+
+    /** The curves cover the tile grid of the spatial index, which is 2^ZOOM tiles on a side. */
+    public static final int GRID_SIZE = 1 << WebMercatorTile.ZOOM;
+
+    /** @return the position of the given tile along this curve, in the range [0, GRID_SIZE^2). */
+    public abstract long encode(int x, int y);
+
+    /**
+     * Decompose an inclusive rectangle of tiles into ranges along this curve. Tile numbers outside the grid are
+     * clamped to its edges.
+     * @return a flat array of [start, end) pairs, sorted and with adjacent ranges merged.
+     */
+    public long[] ranges(int minX, int minY, int maxX, int maxY) {
+        minX = clamp(minX);
+        minY = clamp(minY);
+        maxX = clamp(maxX);
+        maxY = clamp(maxY);
+        TLongLongMap blocks = new TLongLongHashMap();
+        decompose(0, 0, GRID_SIZE, minX, minY, maxX, maxY, blocks);
+        // Blocks are not found in curve order by the recursion, so sort them before merging adjacent ones.
+        long[] starts = blocks.keys();
+        Arrays.sort(starts);
+        TLongList merged = new TLongArrayList();
+        for (long start : starts) {
+            long end = blocks.get(start);
+            int last = merged.size() - 1;
+            if (last > 0 && merged.get(last) == start) {
+                merged.set(last, end);
+            } else {
+                merged.add(start);
+                merged.add(end);
+            }
+        }
+        return merged.toArray();
+    }
+
+    /** Recursively subdivide the grid, emitting the curve range of every block that lies entirely in the rectangle. */
+    private void decompose(int x0, int y0, int size, int minX, int minY, int maxX, int maxY, TLongLongMap blocks) {
+        int x1 = x0 + size - 1;
+        int y1 = y0 + size - 1;
+        if (x0 > maxX || x1 < minX || y0 > maxY || y1 < minY) {
+            return;
+        }
+        if (x0 >= minX && x1 <= maxX && y0 >= minY && y1 <= maxY) {
+            long blockLength = (long) size * size;
+            long start = (encode(x0, y0) / blockLength) * blockLength;
+            blocks.put(start, start + blockLength);
+            return;
+        }
+        int half = size / 2;
+        decompose(x0, y0, half, minX, minY, maxX, maxY, blocks);
+        decompose(x0 + half, y0, half, minX, minY, maxX, maxY, blocks);
+        decompose(x0, y0 + half, half, minX, minY, maxX, maxY, blocks);
+        decompose(x0 + half, y0 + half, half, minX, minY, maxX, maxY, blocks);
+    }
+
+    static int clamp (int tile) {
+        return Math.max(0, Math.min(GRID_SIZE - 1, tile));
+    }
+
+    /** Spread the bits of a tile number out to every other bit position, for interleaving into a Morton code. */
+    private static long spread (int v) {
+        long x = v & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    /** The inverse of spread: gather every other bit of the input (starting with the lowest) into a tile number. */
+    static int compact (long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+
+}
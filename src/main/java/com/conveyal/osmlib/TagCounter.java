@@ -28,7 +28,7 @@ public class TagCounter implements OSMEntitySink {
         if (entity.hasNoTags()) {
             return;
         }
-        for (Tag tag : entity.tags) {
+        for (Tag tag : entity.getTags()) {
             stringWeights.adjustOrPutValue(tag.key, tag.key.length(), tag.key.length());
             stringWeights.adjustOrPutValue(tag.value, tag.value.length(), tag.value.length());
             String kv = tag.toString();
@@ -25,10 +25,10 @@ public class TextOutput implements OSMEntitySink {
         if (entity.hasNoTags()) {
             return;
         }
-        for (OSMEntity.Tag tag : entity.tags) {
-            printStream.print(tag.key);
+        for (int t = 0; t < entity.getTagCount(); t++) {
+            printStream.print(entity.getTagKey(t));
             printStream.print("=");
-            printStream.print(tag.value);
+            printStream.print(entity.getTagValue(t));
             printStream.print(";");
         }
     }
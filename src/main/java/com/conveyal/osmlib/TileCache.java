@@ -0,0 +1,215 @@
+package com.conveyal.osmlib;
+
+import com.conveyal.osmlib.serializer.NodeSerializer;
+import com.conveyal.osmlib.serializer.VarInt;
+import com.conveyal.osmlib.serializer.WaySerializer;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded in-memory cache of the contents of individual zoom 12 tiles, from which any extract made of whole
+ * tiles can be assembled without reading the database.
+ *
+ * Each fragment holds the ways indexed in one tile, all the nodes they reference, the tagged nodes in the tile, and
+ * the IDs of the relations any of these are members of. The entities are sorted by ID and encoded compactly with the
+ * same serializers as the database, so fragments for neighboring tiles can be merged into a single sorted stream,
+ * dropping the nodes that are shared between tiles. Fragments are invalidated by a TileChangeTracker in the same way
+ * as whole extracts in the ExtractCache.
+ */
+public class TileCache {
+
+    /** Extracts covering more tiles than this are copied straight from the database, to avoid holding them in memory. */
+    public static final int MAX_TILES = 1024;
+
+    /** Ways indexed in a tile may have nodes in neighboring tiles, so changes there are considered to affect it. */
+    private static final int MARGIN_TILES = 1;
+
+    private static final Metrics.Counter REQUESTS = new Metrics.Counter("osmlib_tile_cache_requests_total",
+            "Tile contents taken from the cache (hit) or read from the database (miss).", "result");
+
+    private static final NodeSerializer NODE_SERIALIZER = new NodeSerializer();
+
+    private static final WaySerializer WAY_SERIALIZER = new WaySerializer();
+
+    private final OSM osm;
+
+    private final TileChangeTracker tracker;
+
+    private final long maxBytes;
+
+    /** Fragments keyed on tile number, in access order so that the least recently used one is always first. */
+    private final LinkedHashMap<Integer, Fragment> fragments = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes = 0;
+
+    /** The encoded contents of one tile, as of the given version from the TileChangeTracker. */
+    static class Fragment {
+        final long version;
+        final byte[] data;
+        Fragment (long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /** @param maxBytes the total size of the cached fragments above which the least recently used will be evicted. */
+    public TileCache (OSM osm, TileChangeTracker tracker, long maxBytes) {
+        this.osm = osm;
+        this.tracker = tracker;
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return the contents of the given tile, from the cache if they are up to date, otherwise from the database. */
+    Fragment get (int xtile, int ytile) throws IOException {
+        long version = tracker.lastChange(xtile - MARGIN_TILES, ytile - MARGIN_TILES,
+                xtile + MARGIN_TILES, ytile + MARGIN_TILES);
+        int key = ytile * SpaceFillingCurve.GRID_SIZE + xtile;
+        synchronized (this) {
+            Fragment fragment = fragments.get(key);
+            if (fragment != null && fragment.version >= version) {
+                REQUESTS.labels("hit").inc();
+                return fragment;
+            }
+        }
+        REQUESTS.labels("miss").inc();
+        Fragment fragment = new Fragment(version, encode(xtile, ytile));
+        // Only keep the fragment if no update touched the tile while it was being read.
+        if (version != Long.MAX_VALUE && version == tracker.lastChange(xtile - MARGIN_TILES, ytile - MARGIN_TILES,
+                xtile + MARGIN_TILES, ytile + MARGIN_TILES)) {
+            put(key, fragment);
+        }
+        return fragment;
+    }
+
+    private synchronized void put (int key, Fragment fragment) {
+        Fragment previous = fragments.put(key, fragment);
+        if (previous != null) totalBytes -= previous.data.length;
+        totalBytes += fragment.data.length;
+        Iterator<Map.Entry<Integer, Fragment>> iterator = fragments.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().data.length;
+            iterator.remove();
+        }
+    }
+
+    /** Read the contents of one tile from the database and encode them as a fragment. */
+    private byte[] encode (int xtile, int ytile) throws IOException {
+        // Read the latest consistent state of the database, at least as recent as the version obtained by the caller.
+        OSM view = osm.readView();
+        long morton = SpaceFillingCurve.MORTON.encode(xtile, ytile);
+        TLongObjectMap<Way> ways = new TLongObjectHashMap<>();
+        TLongSet nodeIds = new TLongHashSet();
+        TLongSet relationIds = new TLongHashSet();
+        for (long key : TileKey.subSet(view.index, morton, morton + 1)) {
+            long wayId = TileKey.entityId(key);
+            Way way = view.ways.get(wayId);
+            if (way == null) continue;
+            ways.put(wayId, way);
+            nodeIds.addAll(way.nodes);
+            TileOSMSource.addRelations(view.relationsByWay, wayId, relationIds);
+        }
+        for (long key : TileKey.subSet(view.nodeIndex, morton, morton + 1)) {
+            nodeIds.add(TileKey.entityId(key));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long[] sortedNodeIds = nodeIds.toArray();
+        Arrays.sort(sortedNodeIds);
+        Node[] nodes = new Node[sortedNodeIds.length];
+        int nNodes = 0;
+        for (int i = 0; i < sortedNodeIds.length; i++) {
+            nodes[i] = view.nodes.get(sortedNodeIds[i]);
+            if (nodes[i] != null) {
+                nNodes++;
+                TileOSMSource.addRelations(view.relationsByNode, sortedNodeIds[i], relationIds);
+            }
+        }
+        VarInt.writeRawVarint32(out, nNodes);
+        long prevId = 0;
+        for (int i = 0; i < sortedNodeIds.length; i++) {
+            if (nodes[i] == null) continue;
+            VarInt.writeRawVarint64(out, sortedNodeIds[i] - prevId);
+            NODE_SERIALIZER.serialize(out, nodes[i]);
+            prevId = sortedNodeIds[i];
+        }
+        long[] sortedWayIds = ways.keys();
+        Arrays.sort(sortedWayIds);
+        VarInt.writeRawVarint32(out, sortedWayIds.length);
+        prevId = 0;
+        for (long wayId : sortedWayIds) {
+            VarInt.writeRawVarint64(out, wayId - prevId);
+            WAY_SERIALIZER.serialize(out, ways.get(wayId));
+            prevId = wayId;
+        }
+        long[] sortedRelationIds = relationIds.toArray();
+        Arrays.sort(sortedRelationIds);
+        VarInt.writeRawVarint32(out, sortedRelationIds.length);
+        prevId = 0;
+        for (long relationId : sortedRelationIds) {
+            VarInt.writeRawVarint64(out, relationId - prevId);
+            prevId = relationId;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a fragment one section at a time: first the nodes, then the ways, then the relation IDs. Call
+     * startSection() before reading each section, then call the next method for that section until it returns false.
+     */
+    static class FragmentReader {
+
+        private final DataInputStream in;
+        private int remaining;
+        long id;
+        Node node;
+        Way way;
+
+        FragmentReader (Fragment fragment) {
+            in = new DataInputStream(new ByteArrayInputStream(fragment.data));
+        }
+
+        void startSection () throws IOException {
+            remaining = VarInt.readRawVarint32(in);
+            id = 0;
+        }
+
+        boolean nextNode () throws IOException {
+            if (remaining == 0) return false;
+            remaining--;
+            id += VarInt.readRawVarint64(in);
+            node = NODE_SERIALIZER.deserialize(in, -1);
+            return true;
+        }
+
+        boolean nextWay () throws IOException {
+            if (remaining == 0) return false;
+            remaining--;
+            id += VarInt.readRawVarint64(in);
+            way = WAY_SERIALIZER.deserialize(in, -1);
+            return true;
+        }
+
+        void readRelationIds (TLongSet relationIds) throws IOException {
+            for (; remaining > 0; remaining--) {
+                id += VarInt.readRawVarint64(in);
+                relationIds.add(id);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TIntLongIterator;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Keeps track of which web Mercator tiles were changed by replication updates, and when. This allows anything derived
+ * from a range of tiles (such as a cached extract) to be reused until an update touches those tiles.
+ *
+ * Tiles are marked as they are changed while a diff is being applied, and are only given the timestamp of the diff
+ * once it has been completely applied. Until then, the tiles are considered to be in flux and anything derived from
+ * them must not be kept. All of this is held in memory: a tile that has not changed since this tracker was created
+ * is assumed to be as of the database timestamp at that time.
+ */
+public class TileChangeTracker {
+
+    /** The database timestamp when tracking started, which is the version of all tiles not changed since. */
+    public final long baseline;
+
+    /** For each tile that has changed, the timestamp of the last replication update that changed it. */
+    private final TIntLongMap lastChanged = new TIntLongHashMap();
+
+    /** Tiles changed by the replication update that is currently being applied. */
+    private final TIntSet pending = new TIntHashSet();
+
+    public TileChangeTracker (long baseline) {
+        this.baseline = baseline;
+    }
+
+    private static int tileNumber (int xtile, int ytile) {
+        return SpaceFillingCurve.clamp(ytile) * SpaceFillingCurve.GRID_SIZE + SpaceFillingCurve.clamp(xtile);
+    }
+
+    /** Record that the given tile was changed by the update currently being applied. */
+    public synchronized void markChanged (int xtile, int ytile) {
+        pending.add(tileNumber(xtile, ytile));
+    }
+
+    /** Record that all tiles marked since the last call were changed by an update with the given timestamp. */
+    public synchronized void commit (long timestamp) {
+        for (TIntIterator it = pending.iterator(); it.hasNext(); ) {
+            lastChanged.put(it.next(), timestamp);
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return the timestamp of the last update that changed any tile in the given range, or Long.MAX_VALUE if an
+     *         update that is still being applied has changed a tile in the range.
+     */
+    public synchronized long lastChange (int minX, int minY, int maxX, int maxY) {
+        minX = SpaceFillingCurve.clamp(minX);
+        minY = SpaceFillingCurve.clamp(minY);
+        maxX = SpaceFillingCurve.clamp(maxX);
+        maxY = SpaceFillingCurve.clamp(maxY);
+        for (TIntIterator it = pending.iterator(); it.hasNext(); ) {
+            if (inRange(it.next(), minX, minY, maxX, maxY)) return Long.MAX_VALUE;
+        }
+        long lastChange = baseline;
+        long nTiles = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (nTiles > lastChanged.size()) {
+            for (TIntLongIterator it = lastChanged.iterator(); it.hasNext(); ) {
+                it.advance();
+                if (inRange(it.key(), minX, minY, maxX, maxY)) lastChange = Math.max(lastChange, it.value());
+            }
+        } else {
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    int tile = tileNumber(x, y);
+                    if (lastChanged.containsKey(tile)) lastChange = Math.max(lastChange, lastChanged.get(tile));
+                }
+            }
+        }
+        return lastChange;
+    }
+
+    private static boolean inRange (int tile, int minX, int minY, int maxX, int maxY) {
+        int x = tile % SpaceFillingCurve.GRID_SIZE;
+        int y = tile / SpaceFillingCurve.GRID_SIZE;
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+
+}
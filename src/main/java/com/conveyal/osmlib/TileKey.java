@@ -0,0 +1,52 @@
+package com.conveyal.osmlib;
+
+import java.util.NavigableSet;
+
+/**
+ * Keys of the tile-based spatial indexes. Each key is a single non-negative long combining the Morton code of a web
+ * Mercator tile (high bits) with the ID of an OSM entity in that tile (low bits). These keys are stored without any
+ * boxed tuple objects using MapDB's delta-packing long key serializer, and all entities in any power-of-two-aligned
+ * block of tiles are contiguous in key order.
+ */
+public class TileKey {
+
+    /** The low bits of each key hold the entity ID, and the 24 bits above them hold the Morton code of the tile. */
+    public static final int ID_BITS = 39;
+
+    public static final long MAX_ID = (1L << ID_BITS) - 1;
+
+    /** @return the key for the given entity in the given tile, with tile numbers clamped to the index grid. */
+    public static long encode (int xtile, int ytile, long entityId) {
+        if (entityId < 0 || entityId > MAX_ID) {
+            throw new IllegalArgumentException("Entity ID is out of the range supported by the spatial index: " + entityId);
+        }
+        long morton = SpaceFillingCurve.MORTON.encode(SpaceFillingCurve.clamp(xtile), SpaceFillingCurve.clamp(ytile));
+        return morton << ID_BITS | entityId;
+    }
+
+    public static long entityId (long key) {
+        return key & MAX_ID;
+    }
+
+    public static int xtile (long key) {
+        return SpaceFillingCurve.compact(key >>> ID_BITS);
+    }
+
+    public static int ytile (long key) {
+        return SpaceFillingCurve.compact(key >>> (ID_BITS + 1));
+    }
+
+    /**
+     * @return a view of all keys in the given index that fall within the range [curveStart, curveEnd) of positions
+     *         along the Morton curve, as returned by SpaceFillingCurve.MORTON.ranges().
+     */
+    public static NavigableSet<Long> subSet (NavigableSet<Long> index, long curveStart, long curveEnd) {
+        long lower = curveStart << ID_BITS;
+        if (curveEnd >= (long) SpaceFillingCurve.GRID_SIZE * SpaceFillingCurve.GRID_SIZE) {
+            // The upper bound would not fit in a non-negative long.
+            return index.tailSet(lower, true);
+        }
+        return index.subSet(lower, true, curveEnd << ID_BITS, false);
+    }
+
+}
@@ -5,28 +5,82 @@ import gnu.trove.list.TLongList;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
-import java.net.URL;
+import java.util.Arrays;
 import java.util.Optional;
 import org.mapdb.Fun;
-import org.mapdb.Fun.Tuple3;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NavigableSet;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 /** An OSM source that pulls web Mercator tiles out of a disk-backed OSM store. */
 public class TileOSMSource implements OSMEntitySource {
 
     protected static final Logger LOG = LoggerFactory.getLogger(TileOSMSource.class);
 
+    private static final Metrics.Histogram STAGE_SECONDS = new Metrics.Histogram("osmlib_extract_stage_seconds",
+            "Time spent gathering the contents of extracts before any output, and then writing them out.",
+            Metrics.SECONDS_BUCKETS, "stage");
+
+    private static final Metrics.Counter ENTITIES = new Metrics.Counter("osmlib_extract_entities_total",
+            "Entities written out in extracts.", "type");
+
     private int minX, minY, maxX, maxY;
 
+    private final OSM database;
+
+    /** The view of the database that the extract is read from, see OSM.readView(). */
     private OSM osm;
 
+    /** If set, the extract is clipped to this polygon, and each tile in the tile range is classified against it. */
+    private Polygon polygon;
+    private byte[] tileClasses;
+
+    /**
+     * If true, scan the spatial index only once, buffering the IDs of the ways and nodes of the extract in memory so
+     * they can be written out in sorted order. Otherwise make two passes over the ways, one to write their nodes and
+     * one to write the ways themselves, which uses less memory for very large extracts.
+     */
+    private boolean singlePass = false;
+
+    /**
+     * If set, the single-pass mode gathers the contents of the extract using this pool. Scanning the index and fetching
+     * ways dominate the time taken by large extracts and are easily divided between threads, while writing the output
+     * must remain sequential to respect the entity order required by the sinks.
+     */
+    private ForkJoinPool pool = null;
+
+    /** If set, extracts made of whole tiles are assembled from the cached contents of each tile. */
+    private TileCache tileCache = null;
+
+    /** Set when the extract is no longer wanted, for example because the client requesting it has disconnected. */
+    private volatile boolean cancelled = false;
+
+    private static final long[] NO_IDS = new long[0];
+
+    /** The maximum number of tiles along the Morton curve whose spatial index entries are scanned by a single task. */
+    private static final int TILES_PER_TASK = 4;
+
+    /** The maximum number of ways from a Hilbert index query result that are fetched by a single task. */
+    private static final int WAYS_PER_TASK = 4096;
+
     public TileOSMSource (OSM osm) {
-        this.osm = osm;
+        this.database = osm;
+        this.osm = osm.readView();
     }
 
     public void setTileRange(int minX, int minY, int maxX, int maxY) {
@@ -37,6 +91,25 @@ public class TileOSMSource implements OSMEntitySource {
         this.minY = minY;
         this.maxX = maxX;
         this.maxY = maxY;
+        this.polygon = null;
+        this.tileClasses = null;
+    }
+
+    /**
+     * Set the extract to the given web Mercator tile. A tile at a zoom level below that of the spatial index is made of
+     * several whole index tiles, while a tile at a higher zoom level is widened to the index tile that contains it.
+     */
+    public void setTile(int zoom, int xtile, int ytile) {
+        if (zoom < 0 || xtile < 0 || ytile < 0 || xtile >= (1 << zoom) || ytile >= (1 << zoom)) {
+            throw new IllegalArgumentException("No such tile: " + zoom + "/" + xtile + "/" + ytile);
+        }
+        if (zoom > WebMercatorTile.ZOOM) {
+            int shift = zoom - WebMercatorTile.ZOOM;
+            setTileRange(xtile >> shift, ytile >> shift, xtile >> shift, ytile >> shift);
+        } else {
+            int shift = WebMercatorTile.ZOOM - zoom;
+            setTileRange(xtile << shift, ytile << shift, ((xtile + 1) << shift) - 1, ((ytile + 1) << shift) - 1);
+        }
     }
 
     public void setBoundingBox(double minLat, double minLon, double maxLat, double maxLon) {
@@ -48,101 +121,601 @@ public class TileOSMSource implements OSMEntitySource {
 
     }
 
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * Clip the extract to the given polygon. Ways whose index tile lies entirely inside the polygon are included
+     * without looking at their nodes, while in tiles crossed by the polygon boundary a way is included if any of its
+     * nodes are inside the polygon, and a tagged node if it is inside the polygon itself.
+     */
+    public void setPolygon(Polygon polygon) {
+        setBoundingBox(polygon.minLat, polygon.minLon, polygon.maxLat, polygon.maxLon);
+        this.polygon = polygon;
+        this.tileClasses = polygon.classifyTiles(minX, minY, maxX, maxY);
+    }
+
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * Gather extracts in parallel on the given pool, or serially on the calling thread if it is null.
+     * Parallel gathering implies the single-pass mode.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        this.pool = pool;
+        if (pool != null) singlePass = true;
+    }
+
+    public void setTileCache(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
     @Override
     public Optional<String> osmosisReplicationUrl() {
         return Optional.empty();
     }
 
+    /**
+     * Stop an extract in progress as soon as possible, from any thread. The copyTo call producing the extract will
+     * then abort its sink and throw a CancellationException.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void checkCancelled () {
+        if (cancelled) throw new CancellationException("Extract was cancelled.");
+    }
+
     public void copyTo (OSMEntitySink sink) throws IOException {
+        // Read the latest consistent state of the database, which is at least as recent as any version of the tiles
+        // obtained from the change tracker before this call.
+        osm = database.readView();
+        sink = new MeteredSink(sink);
+        try {
+            if (tileCache != null && polygon == null && countTiles() <= TileCache.MAX_TILES) {
+                copyFromTileCache(sink);
+            } else if (singlePass) {
+                copySinglePass(sink);
+            } else {
+                copyTwoPass(sink);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Make sure any threads started by the sink do not outlive this extract.
+            sink.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the time taken by each stage of an extract and the number of entities written. Gathering lasts until the
+     * output is begun, which all the extract modes only do once they are ready to write entities.
+     */
+    private static class MeteredSink implements OSMEntitySink {
+
+        private final OSMEntitySink sink;
+        private final long startNanos = System.nanoTime();
+        private long writeNanos;
+        private long nodes, ways, relations;
+
+        MeteredSink (OSMEntitySink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void writeBegin () throws IOException {
+            writeNanos = System.nanoTime();
+            STAGE_SECONDS.labels("gather").observe((writeNanos - startNanos) / 1e9);
+            sink.writeBegin();
+        }
+
+        @Override
+        public void setReplicationTimestamp (long secondsSinceEpoch) {
+            sink.setReplicationTimestamp(secondsSinceEpoch);
+        }
+
+        @Override
+        public void setReplicationUrl (String url) {
+            sink.setReplicationUrl(url);
+        }
+
+        @Override
+        public void writeNode (long id, Node node) throws IOException {
+            nodes++;
+            sink.writeNode(id, node);
+        }
+
+        @Override
+        public void writeWay (long id, Way way) throws IOException {
+            ways++;
+            sink.writeWay(id, way);
+        }
+
+        @Override
+        public void writeRelation (long id, Relation relation) throws IOException {
+            relations++;
+            sink.writeRelation(id, relation);
+        }
+
+        @Override
+        public void writeEnd () throws IOException {
+            sink.writeEnd();
+            STAGE_SECONDS.labels("write").observeSince(writeNanos);
+            ENTITIES.labels("node").add(nodes);
+            ENTITIES.labels("way").add(ways);
+            ENTITIES.labels("relation").add(relations);
+        }
+
+        @Override
+        public void abort () {
+            sink.abort();
+        }
+
+    }
+
+    /**
+     * Fetch every way in the tile range to gather the IDs of all their nodes and relations, keeping only the IDs in
+     * memory. Nodes are then fetched and written out in ID order, followed by the ways, which are fetched again in ID
+     * order, and finally the relations. Ways in ID order are close together in the database, so the second fetch
+     * costs much less than the first, and much less than keeping every way of a large extract on the heap.
+     */
+    private void copySinglePass (OSMEntitySink sink) throws IOException {
+        Extract extract = (pool == null) ? gatherSerial() : gatherParallel();
+        sink.writeBegin();
+        // Nodes are read in ID order in a separate thread, so reading from disk overlaps with encoding the output.
+        SortedNodeReader nodeReader = new SortedNodeReader(osm.nodes, extract.sortedNodeIds);
+        try {
+            for (SortedNodeReader.Batch batch; (batch = nodeReader.nextBatch()) != null; ) {
+                checkCancelled();
+                for (int i = 0; i < batch.ids.length; i++) {
+                    if (batch.nodes[i] == null) {
+                        LOG.error("Way references a node {} that was not loaded.", batch.ids[i]);
+                        continue;
+                    }
+                    sink.writeNode(batch.ids[i], batch.nodes[i]);
+                }
+            }
+        } finally {
+            nodeReader.close();
+        }
+        for (long wayId : extract.sortedWayIds) {
+            checkCancelled();
+            Way way = osm.ways.get(wayId);
+            if (way == null) {
+                LOG.error("Way {} is not available.", wayId);
+                continue;
+            }
+            sink.writeWay(wayId, way);
+        }
+        writeRelations(sink, extract.relationIds);
+        sink.writeEnd();
+    }
+
+    /** Gather the contents of the extract on the calling thread. */
+    private Extract gatherSerial () {
+        Extract extract = new Extract();
+        for (long wayId : findWays()) {
+            extract.addWay(wayId);
+        }
+        extract.finish(findTaggedNodes());
+        for (long nodeId : extract.sortedNodeIds) {
+            checkCancelled();
+            addRelations(osm.relationsByNode, nodeId, extract.relationIds);
+        }
+        return extract;
+    }
+
+    /**
+     * Gather the contents of the extract using all threads of the fork-join pool. The tile range is cut into small
+     * pieces of the spatial index (or of the Hilbert index query result) which are scanned and whose ways are fetched
+     * independently, each gathering the IDs it finds into sorted arrays, which are then combined. The relations of the
+     * resulting nodes are also looked up in parallel.
+     */
+    private Extract gatherParallel () {
+        try {
+            return pool.submit(() -> {
+                List<Extract> pieces;
+                HilbertIndex hilbertIndex = hilbertIndex();
+                if (hilbertIndex != null) {
+                    long[] wayIds = hilbertIndex.query(minX, minY, maxX, maxY);
+                    int nChunks = (wayIds.length + WAYS_PER_TASK - 1) / WAYS_PER_TASK;
+                    pieces = IntStream.range(0, nChunks).parallel().mapToObj(c -> {
+                        Extract chunk = new Extract();
+                        int end = Math.min(wayIds.length, (c + 1) * WAYS_PER_TASK);
+                        for (int i = c * WAYS_PER_TASK; i < end; i++) chunk.addWay(wayIds[i]);
+                        chunk.finish(NO_IDS);
+                        return chunk;
+                    }).collect(Collectors.toList());
+                } else {
+                    long[] ranges = splitRanges(SpaceFillingCurve.MORTON.ranges(minX, minY, maxX, maxY));
+                    pieces = IntStream.range(0, ranges.length / 2).parallel().mapToObj(p -> {
+                        Extract piece = new Extract();
+                        for (long key : TileKey.subSet(osm.index, ranges[p * 2], ranges[p * 2 + 1])) {
+                            if (inExtract(key, this::wayInPolygon)) piece.addWay(TileKey.entityId(key));
+                        }
+                        piece.finish(NO_IDS);
+                        return piece;
+                    }).collect(Collectors.toList());
+                }
+                Extract extract = combine(pieces, findTaggedNodes());
+                long[] relationIds = LongStream.of(extract.sortedNodeIds).parallel()
+                        .flatMap(nodeId -> relationsOf(osm.relationsByNode, nodeId)).toArray();
+                extract.relationIds.addAll(relationIds);
+                return extract;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while gathering extract.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) throw (CancellationException) e.getCause();
+            throw new RuntimeException("Error occurred while gathering extract.", e.getCause());
+        }
+    }
+
+    /** Cut ranges of positions along a space filling curve into pieces covering no more than TILES_PER_TASK tiles. */
+    private static long[] splitRanges (long[] ranges) {
+        TLongList pieces = new TLongArrayList();
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (long start = ranges[r]; start < ranges[r + 1]; start += TILES_PER_TASK) {
+                pieces.add(start);
+                pieces.add(Math.min(start + TILES_PER_TASK, ranges[r + 1]));
+            }
+        }
+        return pieces.toArray();
+    }
+
+    /** The IDs of the ways making up an extract, of their nodes and of the relations referencing them. */
+    private class Extract {
+
+        TLongSet wayIds = new TLongHashSet();
+        final TLongSet relationIds = new TLongHashSet();
+        TLongSet nodeIds = new TLongHashSet();
+        long[] sortedWayIds;
+        long[] sortedNodeIds;
+
+        void addWay (long wayId) {
+            checkCancelled();
+            if (wayIds.contains(wayId)) return; // The same way may be indexed in several tiles.
+            Way way = osm.ways.get(wayId);
+            if (way == null) {
+                LOG.error("Way {} is not available.", wayId);
+                return;
+            }
+            wayIds.add(wayId);
+            nodeIds.addAll(way.nodes);
+            addRelations(osm.relationsByWay, wayId, relationIds);
+        }
+
+        /** Add the standalone tagged nodes and put all way and node IDs in order, after which no ways may be added. */
+        void finish (long[] taggedNodeIds) {
+            sortedWayIds = wayIds.toArray();
+            Arrays.sort(sortedWayIds);
+            wayIds = null;
+            nodeIds.addAll(taggedNodeIds);
+            sortedNodeIds = nodeIds.toArray();
+            Arrays.sort(sortedNodeIds);
+            nodeIds = null;
+        }
+
+    }
+
+    /**
+     * Combine finished partial extracts, which share the ways and nodes found on both sides of the boundaries between
+     * them. Their sorted IDs are concatenated and sorted again, which takes much less memory than adding them one by
+     * one to hash sets, and the resulting extract is finished with the given standalone tagged nodes.
+     */
+    private Extract combine (List<Extract> pieces, long[] taggedNodeIds) {
+        Extract extract = new Extract();
+        long[][] wayIds = new long[pieces.size()][];
+        long[][] nodeIds = new long[pieces.size() + 1][];
+        for (int p = 0; p < pieces.size(); p++) {
+            Extract piece = pieces.get(p);
+            wayIds[p] = piece.sortedWayIds;
+            nodeIds[p] = piece.sortedNodeIds;
+            extract.relationIds.addAll(piece.relationIds);
+        }
+        nodeIds[pieces.size()] = taggedNodeIds;
+        extract.wayIds = null;
+        extract.nodeIds = null;
+        extract.sortedWayIds = sortedUnion(wayIds);
+        extract.sortedNodeIds = sortedUnion(nodeIds);
+        return extract;
+    }
+
+    /** @return the distinct IDs found in any of the given arrays, in ascending order. */
+    private static long[] sortedUnion (long[][] arrays) {
+        int length = 0;
+        for (long[] array : arrays) length += array.length;
+        long[] ids = new long[length];
+        length = 0;
+        for (long[] array : arrays) {
+            System.arraycopy(array, 0, ids, length, array.length);
+            length += array.length;
+        }
+        // When called from a fork-join pool, the sort is divided between the threads of that pool.
+        Arrays.parallelSort(ids);
+        int n = 0;
+        for (long id : ids) {
+            if (n == 0 || id != ids[n - 1]) ids[n++] = id;
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * Merge the cached contents of all tiles in the range into a single stream of nodes, ways and relations in ID
+     * order, skipping entities that appear in more than one tile.
+     */
+    private void copyFromTileCache (OSMEntitySink sink) throws IOException {
+        int width = maxX - minX + 1;
+        TileCache.FragmentReader[] readers = new TileCache.FragmentReader[width * (maxY - minY + 1)];
+        if (pool == null) {
+            for (int t = 0; t < readers.length; t++) {
+                checkCancelled();
+                readers[t] = new TileCache.FragmentReader(tileCache.get(minX + t % width, minY + t / width));
+            }
+        } else {
+            // Fragments that are not in the cache are read from the database in parallel.
+            try {
+                pool.submit(() -> IntStream.range(0, readers.length).parallel().forEach(t -> {
+                    checkCancelled();
+                    try {
+                        readers[t] = new TileCache.FragmentReader(tileCache.get(minX + t % width, minY + t / width));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading tiles.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException) throw (CancellationException) e.getCause();
+                throw new IOException("Error occurred while reading tiles.", e.getCause());
+            }
+        }
+
+        sink.writeBegin();
+        PriorityQueue<TileCache.FragmentReader> queue = new PriorityQueue<>(Comparator.comparingLong(r -> r.id));
+        for (TileCache.FragmentReader reader : readers) {
+            reader.startSection();
+            if (reader.nextNode()) queue.add(reader);
+        }
+        long prevId = -1;
+        while (!queue.isEmpty()) {
+            checkCancelled();
+            TileCache.FragmentReader reader = queue.poll();
+            if (reader.id != prevId) sink.writeNode(reader.id, reader.node);
+            prevId = reader.id;
+            if (reader.nextNode()) queue.add(reader);
+        }
+        for (TileCache.FragmentReader reader : readers) {
+            reader.startSection();
+            if (reader.nextWay()) queue.add(reader);
+        }
+        prevId = -1;
+        while (!queue.isEmpty()) {
+            checkCancelled();
+            TileCache.FragmentReader reader = queue.poll();
+            if (reader.id != prevId) sink.writeWay(reader.id, reader.way);
+            prevId = reader.id;
+            if (reader.nextWay()) queue.add(reader);
+        }
+        TLongSet relationIds = new TLongHashSet();
+        for (TileCache.FragmentReader reader : readers) {
+            reader.startSection();
+            reader.readRelationIds(relationIds);
+        }
+        writeRelations(sink, relationIds);
+        sink.writeEnd();
+    }
+
+    private void copyTwoPass (OSMEntitySink sink) throws IOException {
         // Avoid writing out shared/intersection nodes more than once. Besides being wasteful, the first node in one way
         // may be the last node in the previous way output, which would create a node ID delta of zero and prematirely
         // end the block.
         NodeTracker nodesSeen = new NodeTracker();
         TLongSet relationsSeen = new TLongHashSet();
+        long[] wayIds = findWays();
 
-            sink.writeBegin();
-            for (int pass = 0; pass < 2; pass++) {
-                for (int x = minX; x <= maxX; x++) {
-                    // SortedSet provides one-dimensional ordering and iteration. Tuple3 gives an odometer-like ordering.
-                    // Therefore we must vary one of the dimensions "manually". Consider a set containing all the
-                    // integers from 00 to 99 at 2-tuples. The range from (1,1) to (2,2) does not contain the four
-                    // elements (1,1) (1,2) (2,1) (2,2). It contains the elements (1,1) (1,2) (1,3) (1,4) ... (2,2).
-                    @SuppressWarnings("unchecked")
-                    NavigableSet<Tuple3<Integer, Integer, Long>> xSubset = osm.index.subSet(
-                            new Tuple3(x, minY, null), true, // inclusive lower bound, null tests lower than anything
-                            new Tuple3(x, maxY, Fun.HI), true  // inclusive upper bound, HI tests higher than anything
-                    );
-                    for (Tuple3<Integer, Integer, Long> item : xSubset) {
-                        long wayId = item.c;
-                        Way way = osm.ways.get(wayId);
-                        if (way == null) {
-                            LOG.error("Way {} is not available.", wayId);
-                            continue;
-                        }
-                        if (pass == 0) { // Nodes
-                            for (long nodeId : way.nodes) {
-                                if (nodesSeen.contains(nodeId)) continue;
-                                Node node = osm.nodes.get(nodeId);
-                                if (node == null) {
-                                    LOG.error("Way references a node {} that was not loaded.", nodeId);
-                                } else {
-                                    sink.writeNode(nodeId, node);
-                                    nodesSeen.add(nodeId);
-
-                                    // check if this node is part of any relations
-                                    Set<Fun.Tuple2<Long, Long>> relationsForNode = osm.relationsByNode.subSet(
-                                            new Fun.Tuple2(wayId, null),
-                                            new Fun.Tuple2(wayId, Fun.HI));
-
-                                    for (Fun.Tuple2<Long, Long> idx: relationsForNode) {
-                                        relationsSeen.add(idx.b);
-                                    }
-                                }
-                            }
-                        } else if (pass == 1) {
-                            sink.writeWay(wayId, way);
-
-                            Set<Fun.Tuple2<Long, Long>> relationsForWay = osm.relationsByWay.subSet(
-                                    new Fun.Tuple2(wayId, null),
-                                    new Fun.Tuple2(wayId, Fun.HI));
-                            // check if this way is part of any relations
-                            for (Fun.Tuple2<Long, Long> idx : relationsForWay) {
-                                relationsSeen.add(idx.b);
-                            }
-                        }
-                    }
+        sink.writeBegin();
+        for (int pass = 0; pass < 2; pass++) {
+            for (long wayId : wayIds) {
+                copyWay(pass, wayId, sink, nodesSeen, relationsSeen);
+            }
+            // Standalone tagged nodes (points of interest) are not reached through any way.
+            if (pass == 0) {
+                for (long nodeId : findTaggedNodes()) {
+                    copyNode(nodeId, sink, nodesSeen, relationsSeen);
                 }
+            }
+        }
+        writeRelations(sink, relationsSeen);
+        sink.writeEnd();
+    }
+
+    /** @return the number of tiles in the tile range. */
+    public long countTiles() {
+        return (long) (maxX - minX + 1) * (maxY - minY + 1);
+    }
 
-                // write relations all at one fell swoop
-                // first see if there are any relations that are referred by other relations.
-                TLongList addedRelations = new TLongArrayList();
-                do {
-                    addedRelations.clear();
+    /**
+     * Estimate the size of the extract from the spatial index, for deciding whether and when to produce it. A fresh
+     * Hilbert index counts the ways in the tile range by binary search, however many there are. Otherwise the entries
+     * of the MapDB index are counted one by one, so the count stops at the given limit to keep this cheap.
+     * @return the number of ways indexed in the tile range (ignoring any polygon) if it is known to be exact, or the
+     *         given limit if there is no fresh Hilbert index and there are at least that many.
+     */
+    public long estimateWays(long limit) {
+        HilbertIndex hilbertIndex = osm.freshHilbertIndex();
+        if (hilbertIndex != null) {
+            return hilbertIndex.count(minX, minY, maxX, maxY);
+        }
+        long count = 0;
+        long[] mortonRanges = SpaceFillingCurve.MORTON.ranges(minX, minY, maxX, maxY);
+        for (int r = 0; r < mortonRanges.length; r += 2) {
+            for (Iterator<Long> it = TileKey.subSet(osm.index, mortonRanges[r], mortonRanges[r + 1]).iterator();
+                 it.hasNext() && count < limit; it.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
 
-                    // we have to do this recursively as a relation could refer to a relation that in turn refers to a
-                    // relation. Note that since we are using a set we can't loop infinitely if there is a cycle or self
-                    // referential relation.
-                    for (TLongIterator it = relationsSeen.iterator(); it.hasNext();) {
-                        long relation = it.next();
+    /** @return the IDs of all ways in the tile range, each appearing once. */
+    private long[] findWays () {
+        HilbertIndex hilbertIndex = hilbertIndex();
+        if (hilbertIndex != null) {
+            return hilbertIndex.query(minX, minY, maxX, maxY);
+        }
+        return scanIndex(osm.index, this::wayInPolygon);
+    }
 
-                        Set<Fun.Tuple2<Long, Long>> relationsForRelation = osm.relationsByRelation.subSet(
-                                new Fun.Tuple2(relation, null),
-                                new Fun.Tuple2(relation, Fun.HI));
+    /** @return the IDs of all tagged nodes in the tile range. */
+    private long[] findTaggedNodes () {
+        return scanIndex(osm.nodeIndex, this::nodeInPolygon);
+    }
 
-                        for (Fun.Tuple2<Long, Long> idx : relationsForRelation) {
-                            if (!relationsSeen.contains(relation)) addedRelations.add(idx.b);
-                        }
-                    }
+    /**
+     * On a database that is not being updated, a static Hilbert index can locate the ways much faster.
+     * It does not record the tile of each way though, so it cannot be used for polygon extracts.
+     * @return the Hilbert index, or null if it cannot be used for this extract.
+     */
+    private HilbertIndex hilbertIndex () {
+        return polygon == null ? osm.freshHilbertIndex() : null;
+    }
 
-                    relationsSeen.addAll(addedRelations);
-                } while (!addedRelations.isEmpty());
+    /** @return the IDs of all entities in the tile range of the given spatial index. */
+    private long[] scanIndex (NavigableSet<Long> index, LongPredicate inPolygon) {
+        TLongList ids = new TLongArrayList();
+        // Every aligned block of tiles is contiguous in the index, so a few range scans cover the whole tile range.
+        long[] mortonRanges = SpaceFillingCurve.MORTON.ranges(minX, minY, maxX, maxY);
+        for (int r = 0; r < mortonRanges.length; r += 2) {
+            for (long key : TileKey.subSet(index, mortonRanges[r], mortonRanges[r + 1])) {
+                checkCancelled();
+                if (inExtract(key, inPolygon)) ids.add(TileKey.entityId(key));
+            }
+        }
+        return ids.toArray();
+    }
 
-                for (TLongIterator it = relationsSeen.iterator(); it.hasNext();) {
-                    long relId = it.next();
-                    sink.writeRelation(relId, osm.relations.get(relId));
-                }
+    /**
+     * @return whether the entity of the given spatial index key belongs in the extract. Only entities in tiles crossed
+     *         by the boundary of the polygon (if any) need to be tested individually.
+     */
+    private boolean inExtract (long key, LongPredicate inPolygon) {
+        if (polygon == null) return true;
+        int t = (TileKey.ytile(key) - minY) * (maxX - minX + 1) + (TileKey.xtile(key) - minX);
+        switch (tileClasses[t]) {
+            case Polygon.INSIDE: return true;
+            case Polygon.BOUNDARY: return inPolygon.test(TileKey.entityId(key));
+            default: return false;
+        }
+    }
+
+    private boolean wayInPolygon (long wayId) {
+        Way way = osm.ways.get(wayId);
+        if (way == null) return false;
+        for (long nodeId : way.nodes) {
+            Node node = osm.nodes.get(nodeId);
+            if (node != null && polygon.contains(node)) return true;
+        }
+        return false;
+    }
+
+    private boolean nodeInPolygon (long nodeId) {
+        Node node = osm.nodes.get(nodeId);
+        return node != null && polygon.contains(node);
+    }
+
+    /** Write out either the nodes of a way (pass 0) or the way itself (pass 1), recording any relations it is in. */
+    private void copyWay (int pass, long wayId, OSMEntitySink sink, NodeTracker nodesSeen, TLongSet relationsSeen)
+            throws IOException {
+        checkCancelled();
+        Way way = osm.ways.get(wayId);
+        if (way == null) {
+            LOG.error("Way {} is not available.", wayId);
+            return;
+        }
+        if (pass == 0) { // Nodes
+            for (long nodeId : way.nodes) {
+                copyNode(nodeId, sink, nodesSeen, relationsSeen);
             }
-            sink.writeEnd();
+        } else if (pass == 1) {
+            sink.writeWay(wayId, way);
+            addRelations(osm.relationsByWay, wayId, relationsSeen);
+        }
+    }
+
+    /** Write out the given node unless it has already been written, recording any relations it is in. */
+    private void copyNode (long nodeId, OSMEntitySink sink, NodeTracker nodesSeen, TLongSet relationsSeen)
+            throws IOException {
+        if (nodesSeen.contains(nodeId)) return;
+        Node node = osm.nodes.get(nodeId);
+        if (node == null) {
+            LOG.error("Way references a node {} that was not loaded.", nodeId);
+        } else {
+            sink.writeNode(nodeId, node);
+            nodesSeen.add(nodeId);
+            addRelations(osm.relationsByNode, nodeId, relationsSeen);
+        }
+    }
+
+    /** Record all relations that the given entity is a member of, according to one of the relation indexes. */
+    static void addRelations (NavigableSet<Fun.Tuple2<Long, Long>> relationIndex, long memberId,
+                                      TLongSet relationsSeen) {
+        relationsOf(relationIndex, memberId).forEach(relationsSeen::add);
+    }
+
+    /** @return the IDs of all relations that the given entity is a member of, according to one of the relation indexes. */
+    private static LongStream relationsOf (NavigableSet<Fun.Tuple2<Long, Long>> relationIndex, long memberId) {
+        @SuppressWarnings("unchecked")
+        Set<Fun.Tuple2<Long, Long>> relationsForMember = relationIndex.subSet(
+                new Fun.Tuple2(memberId, null),
+                new Fun.Tuple2(memberId, Fun.HI));
+        return relationsForMember.stream().mapToLong(idx -> idx.b);
+    }
+
+    /** Write relations all at one fell swoop, including any relations that those relations are members of. */
+    private void writeRelations (OSMEntitySink sink, TLongSet relationsSeen) throws IOException {
+        // We have to do this recursively as a relation could refer to a relation that in turn refers to a relation.
+        // Note that since we are using a set we can't loop infinitely if there is a cycle or self referential relation.
+        TLongList frontier = new TLongArrayList(relationsSeen.toArray());
+        while (!frontier.isEmpty()) {
+            TLongSet parents = new TLongHashSet();
+            for (TLongIterator it = frontier.iterator(); it.hasNext();) {
+                addRelations(osm.relationsByRelation, it.next(), parents);
+            }
+            frontier.clear();
+            for (TLongIterator it = parents.iterator(); it.hasNext();) {
+                long parent = it.next();
+                if (relationsSeen.add(parent)) frontier.add(parent);
+            }
+        }
+        long[] relationIds = relationsSeen.toArray();
+        Arrays.sort(relationIds);
+        for (long relId : relationIds) {
+            checkCancelled();
+            Relation relation = osm.relations.get(relId);
+            if (relation == null) {
+                LOG.error("Relation {} is not available.", relId);
+                continue;
+            }
+            sink.writeRelation(relId, relation);
+        }
     }
 
 }
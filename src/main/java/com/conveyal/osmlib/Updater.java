@@ -1,22 +1,32 @@
 package com.conveyal.osmlib;
 
-import com.google.common.collect.Lists;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.bind.DatatypeConverter;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -24,7 +34,9 @@ import java.util.zip.GZIPInputStream;
  * "MapDB should be thread safe within single JVM. So any number of parallel threads is allowed.
  * It supports parallel writes."
  * <p>
- * However, we may eventually want to apply updates in transactions.
+ * However, the database is not transactional, so anything reading it directly could see an update half applied. A
+ * database opened with snapshots is instead read through OSM.readView(), and each batch of updates is published to
+ * readers only once it has been entirely applied.
  */
 public class Updater {
 
@@ -36,16 +48,88 @@ public class Updater {
 
     private static final Instant MAX_REPLICATION_INSTANT = Instant.parse("2100-02-01T00:00:00.00Z");
 
+    private static final Metrics.Gauge LAG_SECONDS = new Metrics.Gauge("osmlib_replication_lag_seconds",
+            "Time elapsed since the timestamp of the last replication update applied to the database.");
+
+    private static final Metrics.Histogram APPLY_SECONDS = new Metrics.Histogram("osmlib_replication_apply_seconds",
+            "Time taken to parse and apply each batch of replication updates once downloaded.",
+            Metrics.SECONDS_BUCKETS);
+
+    private static final Metrics.Histogram DOWNLOAD_SECONDS = new Metrics.Histogram(
+            "osmlib_replication_download_seconds", "Time taken to download each replication update.",
+            Metrics.SECONDS_BUCKETS);
+
+    /** The number of diffs downloaded ahead of the one being applied. */
+    private static final int PREFETCH_DIFFS = 4;
+
+    /** The maximum number of diffs merged into a single change set while catching up, an hour of minutely diffs. */
+    private static final int MAX_COALESCED_DIFFS = 60;
+
+    /**
+     * No more diffs are merged into a change set once it holds this many entities. A change set is held in memory
+     * until it is applied, along with the previous version of every record it replaces in a database with snapshots,
+     * so hourly and daily diffs are only merged a few at a time, or not at all.
+     */
+    private static final int MAX_COALESCED_ENTITIES = 2_000_000;
+
+    /** The intervals in seconds at which replication trees publish diffs: minutely, hourly and daily. */
+    private static final long[] REPLICATION_INTERVALS = { 60, 3600, 86400 };
+
+    /** The shortest delay between two polls of the replication state, which is also how late a diff is expected. */
+    static final long MIN_POLL_SECONDS = 10;
+
+    /** The longest delay between two polls of the replication state while waiting for a diff that is late. */
+    private static final long MAX_POLL_SECONDS = 900;
+
+    private static final Metrics.Counter POLLS = new Metrics.Counter("osmlib_replication_polls_total",
+            "Polls of the replication state, by whether they found and applied updates (updated), found none " +
+            "(unchanged) or could not read the state (failed).", "result");
+
     OSM osm;
 
+    /** Where the states and contents of the diffs are read from. */
+    private final ReplicationSource source;
+
     Diff lastApplied;
 
+    /** The database timestamp, kept here so that metrics can be read without touching the database. */
+    private volatile long appliedTimestamp;
+
+    /**
+     * The states of individual diffs that have already been fetched, keyed on sequence number. The state of a published
+     * diff never changes, so these are kept for the life of the updater.
+     */
+    private final TIntObjectMap<Diff> states = new TIntObjectHashMap<>();
+
+    /** The number of state files requested from the replication server, for testing. */
+    final AtomicInteger statesFetched = new AtomicInteger();
+
+    /** The latest state found by the last call to findDiffs(), or null if it could not be fetched. */
+    private Diff latestState;
+
+    /** The interval in seconds at which diffs are published, or zero until it has been detected. */
+    long intervalSeconds = 0;
+
+    /** How long to wait before polling again if the next diff has not appeared yet. */
+    private long backoffSeconds = MIN_POLL_SECONDS;
+
+    /** If set, each change set is written to the database by the threads of this pool. See ChangeSet.applyTo. */
+    private ForkJoinPool pool = null;
+
+    /** Create an updater for the given database, reading diffs from the replication URL recorded in the database. */
     public Updater(OSM osm) {
+      this(osm, ReplicationSource.forUrl(osm.osmosisReplicationUrl().orElse(FALLBACK_BASE_URL)));
+    }
+
+    public Updater(OSM osm, ReplicationSource source) {
       this.osm = osm;
+      this.source = source;
+      appliedTimestamp = osm.timestamp.get();
+      // A database that has never been stamped with a replication timestamp has no meaningful lag.
+      LAG_SECONDS.set(() -> appliedTimestamp > 0 ? Instant.now().getEpochSecond() - appliedTimestamp : Double.NaN);
     }
 
     public static class Diff {
-        URL url;
         int sequenceNumber;
         long timestamp;
 
@@ -53,37 +137,35 @@ public class Updater {
         public String toString() {
             return "DiffState " +
                     "sequenceNumber=" + sequenceNumber +
-                    ", timestamp=" + timestamp +
-                    ", url=" + url;
+                    ", timestamp=" + timestamp;
         }
     }
 
-    private Diff fetchState(int sequenceNumber) {
-        Diff diffState = new Diff();
-        StringBuilder sb = new StringBuilder(osm.osmosisReplicationUrl().orElse(FALLBACK_BASE_URL));
+    /**
+     * Apply changes in parallel on the threads of the given pool, or on the updater thread if it is null, which is the
+     * default. Writing to the database blocks, so this should be a pool of its own rather than one shared with other
+     * work such as producing extracts.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        this.pool = pool;
+    }
 
-        try {
-            if(!sb.toString().endsWith("/")){
-                sb.append("/");
-            }
-            if (sequenceNumber > 0) {
-                int a = sequenceNumber / 1000000;
-                int b = (sequenceNumber - (a * 1000000)) / 1000;
-                int c = (sequenceNumber - (a * 1000000) - (b * 1000));
-                sb.append(String.format(Locale.US, "%03d/%03d/%03d", a, b, c));
-                // Record the URL of the changeset itself
-                sb.append(".osc.gz");
-                diffState.url = new URL(sb.toString());
-                // Remove the changeset filename, leaving dot
-                sb.delete(sb.length() - 6, sb.length());
-            } else {
-                LOG.debug("Checking replication state for sequence number {}", sequenceNumber);
+    /**
+     * @return the state of the diff with the given sequence number, or the latest state if the sequence number is zero,
+     * or null if it could not be fetched.
+     */
+    private Diff fetchState(int sequenceNumber) {
+        if (sequenceNumber > 0) {
+            synchronized (states) {
+                Diff cached = states.get(sequenceNumber);
+                if (cached != null) return cached;
             }
-            sb.append("state.txt");
-            String planetReplicationUrlString = sb.toString();
-            URL planetReplicationUrl = new URL(planetReplicationUrlString);
-            LOG.info("Requesting data from {}", planetReplicationUrlString);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(planetReplicationUrl.openStream()));
+        }
+        Diff diffState = new Diff();
+        String stateLocation = source.describeState(sequenceNumber);
+        statesFetched.incrementAndGet();
+        LOG.info("Requesting data from {}", stateLocation);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(source.openState(sequenceNumber)))) {
             String line;
             Map<String, String> kvs = new HashMap<>();
             while ((line = reader.readLine()) != null) {
@@ -92,89 +174,349 @@ public class Updater {
                 if (fields.length != 2) continue;
                 kvs.put(fields[0], fields[1]);
             }
-            LOG.info("Received data from {}", planetReplicationUrlString);
+            LOG.info("Received data from {}", stateLocation);
             String timestamp = kvs.get("timestamp");
             if (timestamp == null) {
-                LOG.warn("Timestamp field not found in {}", planetReplicationUrl);
+                LOG.warn("Timestamp field not found in {}", stateLocation);
                 return null;
             }
             String dateTimeString = timestamp.replace("\\:", ":");
             diffState.timestamp = DatatypeConverter.parseDateTime(dateTimeString).getTimeInMillis() / 1000;
             diffState.sequenceNumber = Integer.parseInt(kvs.get("sequenceNumber"));
         } catch (Exception e) {
-            LOG.warn("Could not process OSM state: {}", sb);
+            LOG.warn("Could not process OSM state: {}", stateLocation);
             e.printStackTrace();
             return null;
         }
         // LOG.info("state {}", diffState);
+        if (sequenceNumber > 0) {
+            synchronized (states) {
+                states.put(sequenceNumber, diffState);
+            }
+        }
         return diffState;
     }
 
+    /**
+     * @return the diff with the given sequence number. Its state is only included if it has already been fetched,
+     * otherwise the timestamp is zero and the state must be fetched before the diff is applied.
+     */
+    private Diff diff(int sequenceNumber) {
+        synchronized (states) {
+            Diff cached = states.get(sequenceNumber);
+            if (cached != null) return cached;
+        }
+        Diff diff = new Diff();
+        diff.sequenceNumber = sequenceNumber;
+        return diff;
+    }
+
     public String getDateString(long secondsSinceEpoch) {
         return Instant.ofEpochSecond(secondsSinceEpoch).toString();
     }
 
     /**
      * @return a chronologically ordered list of all diffs at the given timescale with a timestamp after
-     * the database timestamp.
+     * the database timestamp. Only the diffs whose states were fetched while finding the first one have timestamps.
      */
     public List<Diff> findDiffs () {
         List<Diff> workQueue = new ArrayList<Diff>();
         Diff latest = fetchState(0);
+        latestState = latest;
         if (latest == null) {
             LOG.error("Could not find updates from OSM!");
             return List.of();
         }
         // Only check specific updates if the overall state for this timescale implies there are new ones.
         if (latest.timestamp > osm.timestamp.get()) {
-            // Working backward, find all updates that are dated after the current database timestamp.
-            for (int seq = latest.sequenceNumber; seq > 0; seq--) {
-                Diff diff = fetchState(seq);
-                if (diff == null || diff.timestamp <= osm.timestamp.get()) break;
-                workQueue.add(diff);
+            // The states of the diffs are fetched as they are applied, so that applying the first can begin at once.
+            for (int seq = findFirstSequence(latest, osm.timestamp.get()); seq <= latest.sequenceNumber; seq++) {
+                workQueue.add(diff(seq));
             }
         }
         LOG.info("Found {} updates.", workQueue.size());
-        // Put the updates in chronological order before returning them
-        return Lists.reverse(workQueue);
+        return workQueue;
+    }
+
+    /**
+     * Find the first diff dated after the given timestamp, without fetching the state of every diff in between.
+     * Diffs are published at a nearly constant rate, so the sequence number of the first one is estimated from the
+     * timestamps of two known diffs on either side of it. Working backward from the latest diff, the estimate (or a
+     * doubling step, whichever reaches further) is used until a diff at or before the timestamp is found. The known
+     * diffs are then brought together by alternately estimating and bisecting. Diffs whose state cannot be fetched,
+     * usually because they are older than the history kept by the server, are treated as being before the timestamp.
+     * @param latest the latest diff, which is dated after the given timestamp.
+     * @return the sequence number of the first diff dated after the given timestamp.
+     */
+    int findFirstSequence(Diff latest, long timestamp) {
+        Diff after = latest;
+        // The lowest sequence number known to be before the timestamp, and its time if known.
+        int before = 0;
+        long beforeTimestamp = Long.MIN_VALUE;
+        boolean foundBefore = false;
+        Diff previous = null;
+        int step = 1;
+        while (!foundBefore && after.sequenceNumber - before > 1) {
+            if (previous != null) {
+                double secondsPerDiff = (double) (previous.timestamp - after.timestamp) /
+                        (previous.sequenceNumber - after.sequenceNumber);
+                long estimate = (long) Math.ceil((after.timestamp - timestamp) / Math.max(secondsPerDiff, 1e-3)) + 1;
+                step = (int) Math.min(Integer.MAX_VALUE, Math.max(step * 2L, estimate));
+            }
+            int seq = Math.max(after.sequenceNumber - step, before + 1);
+            Diff diff = fetchState(seq);
+            if (diff == null || diff.timestamp <= timestamp) {
+                before = seq;
+                if (diff != null) beforeTimestamp = diff.timestamp;
+                foundBefore = true;
+            } else {
+                previous = after;
+                after = diff;
+            }
+        }
+        for (boolean bisect = false; after.sequenceNumber - before > 1; bisect = !bisect) {
+            int seq;
+            if (bisect || beforeTimestamp == Long.MIN_VALUE) {
+                seq = before + (after.sequenceNumber - before) / 2;
+            } else {
+                seq = before + 1 + (int) ((double) (timestamp - beforeTimestamp) * (after.sequenceNumber - before) /
+                        (after.timestamp - beforeTimestamp));
+                seq = Math.max(before + 1, Math.min(after.sequenceNumber - 1, seq));
+            }
+            Diff diff = fetchState(seq);
+            if (diff == null || diff.timestamp <= timestamp) {
+                before = seq;
+                beforeTimestamp = diff == null ? Long.MIN_VALUE : diff.timestamp;
+            } else {
+                after = diff;
+            }
+        }
+        return after.sequenceNumber;
     }
 
-    private void applyDiffs(List<Diff> workQueue) {
+    /**
+     * A diff whose state and contents have been downloaded, ready to be applied. The contents are kept compressed,
+     * as the osmChange XML of an hourly or daily diff takes many times more memory than the download itself.
+     */
+    private static class Download {
+        final Diff state;
+        final byte[] gzippedOsmChange;
+        Download (Diff state, byte[] gzippedOsmChange) {
+            this.state = state;
+            this.gzippedOsmChange = gzippedOsmChange;
+        }
+    }
+
+    /** Fetch the state of the given diff if needed, and its compressed contents. */
+    private Download download(Diff diff) throws IOException {
+        long startNanos = System.nanoTime();
+        Diff state = diff.timestamp > 0 ? diff : fetchState(diff.sequenceNumber);
+        if (state == null) {
+            throw new IOException("Could not fetch the state of update " + diff.sequenceNumber);
+        }
+        LOG.info("Requesting update {} from {}", state.sequenceNumber, source);
+        try (InputStream inputStream = source.openChange(state.sequenceNumber)) {
+            Download download = new Download(state, inputStream.readAllBytes());
+            DOWNLOAD_SECONDS.observeSince(startNanos);
+            return download;
+        }
+    }
 
+    /**
+     * Apply the given diffs in order. Up to PREFETCH_DIFFS of the following diffs are downloaded on other threads
+     * while each one is applied, so that catching up is limited by the speed of applying the diffs rather than by the
+     * round trip to the replication server. Updates stop at the first diff that cannot be downloaded or applied, so
+     * that none is ever skipped.
+     *
+     * While catching up, up to MAX_COALESCED_DIFFS consecutive diffs from the work queue are merged into a single
+     * ChangeSet before it is applied, so that entities edited in many of them are only written and re-indexed once.
+     * No further diffs are merged once the change set reaches MAX_COALESCED_ENTITIES.
+     * @return the number of diffs applied.
+     */
+    private int applyDiffs(List<Diff> workQueue) {
+        ExecutorService downloader = Executors.newFixedThreadPool(PREFETCH_DIFFS, runnable -> {
+            Thread thread = new Thread(runnable, "Diff-Downloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<Download>> downloads = new ArrayDeque<>();
+        Iterator<Diff> diffs = workQueue.iterator();
+        int nApplied = 0;
         try {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            SAXParser saxParser = factory.newSAXParser();
-            OSMChangeParser handler = new OSMChangeParser(osm);
-            for (Diff state : workQueue) {
-                LOG.info("Applying update for {}", getDateString(state.timestamp));
-                LOG.info("Requesting data from {}", state.url);
-                InputStream inputStream = new GZIPInputStream(state.url.openStream());
-                saxParser.parse(inputStream, handler);
-                // Move the DB timestamp forward to that of the update that was applied
+            OSMChangeParser parser = new OSMChangeParser();
+            boolean downloadFailed = false;
+            while (!downloadFailed) {
+                ChangeSet changeSet = new ChangeSet();
+                Diff state = null;
+                int nCoalesced = 0;
+                long startNanos = System.nanoTime();
+                while (nCoalesced < MAX_COALESCED_DIFFS && changeSet.size() < MAX_COALESCED_ENTITIES) {
+                    prefetch(downloader, downloads, diffs);
+                    if (downloads.isEmpty()) break;
+                    Download download;
+                    try {
+                        download = downloads.remove().get();
+                    } catch (ExecutionException e) {
+                        LOG.error("Could not download update, not applying any further updates.", e.getCause());
+                        downloadFailed = true;
+                        break;
+                    }
+                    state = download.state;
+                    LOG.info("Parsing update for {}", getDateString(state.timestamp));
+                    parser.parse(new GZIPInputStream(new ByteArrayInputStream(download.gzippedOsmChange)), changeSet);
+                    nCoalesced++;
+                }
+                if (state == null) break;
+                LOG.info("Applying {} changed entities from {} updates.", changeSet.size(), nCoalesced);
+                changeSet.applyTo(osm, pool);
+                // Move the DB timestamp forward to that of the last update that was applied
                 osm.timestamp.set(state.timestamp);
+                appliedTimestamp = state.timestamp;
+                // Readers only see the changes once they have all been applied. They must be published before the
+                // changed tiles are given a new version, so that nothing older is ever cached under that version.
+                osm.publish();
+                if (osm.changeTracker != null) {
+                    osm.changeTracker.commit(state.timestamp);
+                }
                 // Record the last update applied so we can jump straight to the next one
                 lastApplied = state;
-                LOG.info(
-                    "Applied update for {}. {} total applied.",
-                    getDateString(state.timestamp),
-                    handler.nParsed
-                );
+                nApplied += nCoalesced;
+                APPLY_SECONDS.observeSince(startNanos);
+                LOG.info("Applied updates up to {}. {} total applied.", getDateString(state.timestamp), nApplied);
             }
-            LOG.info("Finished applying diffs. {} total applied.", handler.nParsed);
+            LOG.info("Finished applying diffs. {} total applied.", nApplied);
         } catch (Exception e) {
             LOG.error("Error when applying OSM updates", e);
+        } finally {
+            downloader.shutdownNow();
+        }
+        return nApplied;
+    }
+
+    /** Start downloading the next diffs, until PREFETCH_DIFFS are downloading or downloaded. */
+    private void prefetch(ExecutorService downloader, Deque<Future<Download>> downloads, Iterator<Diff> diffs) {
+        while (downloads.size() < PREFETCH_DIFFS && diffs.hasNext()) {
+            Diff diff = diffs.next();
+            downloads.add(downloader.submit(() -> download(diff)));
+        }
+    }
+
+    /**
+     * Apply the diffs with the given range of sequence numbers in order, whatever the timestamp of the database. The
+     * database must already be up to date as of the diff before the first one.
+     * @return the number of diffs applied, which is less than the size of the range if one of them could not be applied.
+     */
+    public int replay(int firstSequenceNumber, int lastSequenceNumber) {
+        osm.indexWaysByNode();
+        List<Diff> workQueue = new ArrayList<>();
+        for (int seq = firstSequenceNumber; seq <= lastSequenceNumber; seq++) {
+            workQueue.add(diff(seq));
+        }
+        return applyDiffs(workQueue);
+    }
+
+    /**
+     * Run the updater, usually in another thread.
+     * @return whether any updates were applied.
+     */
+    public boolean update() {
+        if (!hasPlausibleTimestamp()) {
+            LOG.error("OSM database timestamp seems incorrect: {}", Instant.ofEpochSecond(osm.timestamp.get()));
+            LOG.error("Not applying replication updates.");
+            return false;
+        }
+        List<Diff> workQueue = findDiffs();
+        if (latestState == null) {
+            POLLS.labels("failed").inc();
+            return false;
+        }
+        if (intervalSeconds == 0) {
+            intervalSeconds = detectInterval(latestState);
+        }
+        boolean updated = applyDiffs(workQueue) > 0;
+        POLLS.labels(updated ? "updated" : "unchanged").inc();
+        return updated;
+    }
+
+    /** @return whether the database timestamp is in the range of dates at which replication updates can apply. */
+    private boolean hasPlausibleTimestamp() {
+        Instant timestamp = Instant.ofEpochSecond(osm.timestamp.get());
+        return !timestamp.isBefore(MIN_REPLICATION_INSTANT) && !timestamp.isAfter(MAX_REPLICATION_INSTANT);
+    }
+
+    /**
+     * Keep the database up to date by polling the replication state on the given executor, at a cadence matching
+     * the interval at which diffs are published. Once a diff is applied, the state is polled again shortly after the
+     * next one is due. If it has not appeared yet, or the state could not be read, the delay between polls is doubled
+     * up to a limit, so that a late diff is applied soon after it appears without polling continuously. Polling
+     * stops for good if the database timestamp is implausible, for example because it was never set when loading.
+     */
+    public void start(ScheduledExecutorService executor) {
+        executor.execute(() -> {
+            // Fill the index of ways by node now if needed, rather than when the first diff arrives.
+            osm.indexWaysByNode();
+            poll(executor);
+        });
+    }
+
+    private void poll(ScheduledExecutorService executor) {
+        if (!hasPlausibleTimestamp()) {
+            // Polling again would not help, as only loading the database again can fix its timestamp.
+            LOG.error("OSM database timestamp seems incorrect: {}", Instant.ofEpochSecond(osm.timestamp.get()));
+            LOG.error("Not polling for replication updates.");
+            return;
+        }
+        boolean updated = false;
+        try {
+            updated = update();
+        } catch (Exception e) {
+            LOG.error("Error while polling for OSM updates", e);
+        }
+        long delay = nextPollDelay(updated, Instant.now().getEpochSecond());
+        if (!executor.isShutdown()) {
+            LOG.info("Polling for updates again in {} seconds.", delay);
+            executor.schedule(() -> poll(executor), delay, TimeUnit.SECONDS);
         }
     }
 
-    /** Run the updater, usually in another thread. */
-    public void update() {
-        Instant initialTimestamp = Instant.ofEpochSecond(osm.timestamp.get());
-        if (initialTimestamp.isBefore(MIN_REPLICATION_INSTANT) || initialTimestamp.isAfter(MAX_REPLICATION_INSTANT)) {
-            LOG.error("OSM database timestamp seems incorrect: {}", initialTimestamp);
-            LOG.error("Not running the minutely updater thread.");
+    /**
+     * The next diff is only due a whole interval after the latest one if the database is up to date as of that one.
+     * If updates stopped short of it, for example because a diff could not be downloaded, the rest are retried soon.
+     * @param updated whether the last poll applied any updates, in which case any delay starts again from the minimum.
+     * @return how many seconds to wait before polling the replication state again.
+     */
+    long nextPollDelay(boolean updated, long nowSeconds) {
+        long interval = intervalSeconds > 0 ? intervalSeconds : REPLICATION_INTERVALS[0];
+        if (updated) {
+            backoffSeconds = MIN_POLL_SECONDS;
+        }
+        if (updated && latestState != null && osm.timestamp.get() >= latestState.timestamp) {
+            long due = latestState.timestamp + interval + MIN_POLL_SECONDS;
+            return Math.max(MIN_POLL_SECONDS, Math.min(due - nowSeconds, interval + MIN_POLL_SECONDS));
+        }
+        long delay = backoffSeconds;
+        long maxBackoff = Math.max(MIN_POLL_SECONDS, Math.min(interval / 4, MAX_POLL_SECONDS));
+        backoffSeconds = Math.min(backoffSeconds * 2, maxBackoff);
+        return Math.min(delay, maxBackoff);
+    }
+
+    /**
+     * Diffs are published every minute, hour or day depending on the replication tree. Tell which from the time
+     * between the latest diff and the one before it.
+     * @return the replication interval in seconds, or zero if it could not be detected.
+     */
+    private long detectInterval(Diff latest) {
+        Diff previous = latest.sequenceNumber > 1 ? fetchState(latest.sequenceNumber - 1) : null;
+        if (previous == null) return 0;
+        double seconds = Math.max(latest.timestamp - previous.timestamp, 1);
+        long interval = REPLICATION_INTERVALS[0];
+        for (long candidate : REPLICATION_INTERVALS) {
+            if (Math.abs(Math.log(seconds / candidate)) < Math.abs(Math.log(seconds / interval))) {
+                interval = candidate;
+            }
         }
-        applyDiffs(findDiffs());
+        LOG.info("Replication diffs are published every {} seconds.", interval);
+        return interval;
     }
 
-}
\ No newline at end of file
+}
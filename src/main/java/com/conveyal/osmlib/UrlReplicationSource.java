@@ -0,0 +1,36 @@
+package com.conveyal.osmlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/** Reads replication updates from a replication tree published at the given base URL, such as a planet mirror. */
+public class UrlReplicationSource implements ReplicationSource {
+
+    private final String baseUrl;
+
+    public UrlReplicationSource(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    @Override
+    public InputStream openState(int sequenceNumber) throws IOException {
+        return new URL(describeState(sequenceNumber)).openStream();
+    }
+
+    @Override
+    public InputStream openChange(int sequenceNumber) throws IOException {
+        return new URL(baseUrl + ReplicationSource.path(sequenceNumber) + ".osc.gz").openStream();
+    }
+
+    @Override
+    public String describeState(int sequenceNumber) {
+        return baseUrl + ReplicationSource.stateFile(sequenceNumber);
+    }
+
+    @Override
+    public String toString() {
+        return baseUrl;
+    }
+
+}
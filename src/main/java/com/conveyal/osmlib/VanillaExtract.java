@@ -1,10 +1,25 @@
 package com.conveyal.osmlib;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.BindException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import com.google.common.io.CountingOutputStream;
+import org.glassfish.grizzly.CloseListener;
+import org.glassfish.grizzly.CloseType;
+import org.glassfish.grizzly.Closeable;
+import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.http.Method;
 import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.HttpServer;
@@ -30,13 +45,50 @@ public class VanillaExtract {
 
     private static final String BIND_ADDRESS = "0.0.0.0";
 
+    /** The maximum total size of the encoded extracts kept on disk for repeat requests. */
+    private static final long EXTRACT_CACHE_BYTES = 10L * 1024 * 1024 * 1024;
+
+    /** The maximum total size of the encoded tile contents kept in memory for assembling extracts. */
+    private static final long TILE_CACHE_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * The amount of output that may be queued for each connection before writing an extract blocks until the client
+     * has received some of it. This keeps slow clients from making the server buffer whole extracts in memory.
+     */
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Zoom levels at which tiles can be requested as /zoom/x/y[.pbf|.vex]. Tiles at zoom levels below that of the
+     * spatial index are assembled from many index tiles, and tiles above it are served as the index tile containing them.
+     */
+    private static final int MIN_TILE_ZOOM = WebMercatorTile.ZOOM - 4, MAX_TILE_ZOOM = WebMercatorTile.ZOOM + 2;
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    /** The number of threads writing each batch of replication updates to the database. */
+    private static final int UPDATE_THREADS = 4;
+
+    /** The largest polygon that may be POSTed, which is read entirely into memory before the request is admitted. */
+    private static final int MAX_POLYGON_BYTES = 1024 * 1024;
+
+    private static final String USAGE =
+            "URI format: /min_lat,min_lon,max_lat,max_lon[.pbf|.vex] (all coords in decimal degrees)\n" +
+            "or /zoom/x/y[.pbf|.vex] for a web Mercator tile at zoom " + MIN_TILE_ZOOM + " to " + MAX_TILE_ZOOM + "\n" +
+            "or POST a GeoJSON or WKT polygon to /extract[.pbf|.vex]\n";
+
+    private static final Pattern TILE_URI = Pattern.compile("/(\\d+)/(\\d+)/(\\d+)(\\.[a-z]+)");
+
     public static void main(String[] args) {
 
-        OSM osm = new OSM(args[0]);
+        boolean load = args.length > 1 && args[1].startsWith("--load");
+        // A read-only server does not apply replication updates, so it can use a static packed spatial index.
+        boolean readOnly = args.length > 1 && args[1].equalsIgnoreCase("--readonly");
+        // A server applying replication updates serves extracts from snapshots, so they never see half an update.
+        OSM osm = new OSM(args[0], !load && !readOnly);
 
         final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
-        if (args.length > 1 && args[1].startsWith("--load")) {
+        if (load) {
             osm.intersectionDetection = true;
             osm.tileIndexing = true;
             if (args[1].equalsIgnoreCase("--loadurl")) {
@@ -50,16 +102,25 @@ public class VanillaExtract {
             return;
         }
 
-        var updater = new Updater(osm);
+        if (readOnly && osm.freshHilbertIndex() == null) {
+            osm.buildHilbertIndex();
+        }
+
+        osm.changeTracker = new TileChangeTracker(osm.timestamp.get());
+        ExtractCache extractCache = new ExtractCache(new File(args[0] + "_extracts"), EXTRACT_CACHE_BYTES,
+                osm.changeTracker);
+        TileCache tileCache = new TileCache(osm, osm.changeTracker, TILE_CACHE_BYTES);
 
         LOG.info("Starting VEX HTTP server on port {} of interface {}", PORT, BIND_ADDRESS);
         HttpServer httpServer = new HttpServer();
-        httpServer.addListener(new NetworkListener("vanilla_extract", BIND_ADDRESS, PORT));
+        NetworkListener listener = new NetworkListener("vanilla_extract", BIND_ADDRESS, PORT);
+        listener.getTransport().getAsyncQueueIO().getWriter().setMaxPendingBytesPerConnection(MAX_PENDING_BYTES);
+        httpServer.addListener(listener);
         // Bypass Jersey etc. and add a low-level Grizzly handler.
         // As in servlets, * is needed in base path to identify the "rest" of the path.
-        httpServer.getServerConfiguration().addHttpHandler(new VexHttpHandler(osm), "/*");
+        httpServer.getServerConfiguration().addHttpHandler(new VexHttpHandler(osm, extractCache, tileCache), "/*");
         try {
-            executor.scheduleWithFixedDelay(updater::update,0, 1, TimeUnit.HOURS);
+            startUpdater(osm, readOnly, executor);
             httpServer.start();
             LOG.info("Grizzly server running.");
             Thread.currentThread().join();
@@ -74,67 +135,321 @@ public class VanillaExtract {
         }
     }
 
+    /**
+     * Start keeping the database up to date with replication updates on the given executor, unless the server is
+     * read-only, in which case the database is left as it is. In particular none of the indexes needed only to apply
+     * updates are built.
+     * @return the updater, or null for a read-only server.
+     */
+    static Updater startUpdater(OSM osm, boolean readOnly, ScheduledExecutorService executor) {
+        if (readOnly) return null;
+        Updater updater = new Updater(osm);
+        // Updates are applied on threads of their own, so that a large diff cannot hold up the extracts being served.
+        updater.setParallel(new ForkJoinPool(UPDATE_THREADS));
+        updater.start(executor);
+        return updater;
+    }
+
     private static class VexHttpHandler extends HttpHandler {
 
+        private static final Metrics.Histogram REQUEST_SECONDS = new Metrics.Histogram("vex_request_seconds",
+                "Time taken to answer extract requests, by kind of extract.", Metrics.SECONDS_BUCKETS, "kind");
+
+        private static final Metrics.Counter RESPONSES = new Metrics.Counter("vex_responses_total",
+                "Extract requests answered, by HTTP status.", "status");
+
+        private static final Metrics.Counter RESPONSE_BYTES = new Metrics.Counter("vex_response_bytes_total",
+                "Bytes sent in answer to extract requests.");
+
         private final OSM osm;
 
-        public VexHttpHandler(OSM osm) {
+        private final ExtractCache extractCache;
+
+        private final TileCache tileCache;
+
+        private final AdmissionController admissionController = new AdmissionController();
+
+        /** Shared by all requests, so that concurrent extracts divide the processors between them. */
+        private final ForkJoinPool extractPool = new ForkJoinPool();
+
+        /**
+         * Each extract is produced and streamed out on its own virtual thread, which costs little while blocked on a
+         * slow client, so the small pool of Grizzly worker threads is only used to accept and dispatch requests.
+         */
+        private final ExecutorService extractExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        public VexHttpHandler(OSM osm, ExtractCache extractCache, TileCache tileCache) {
             this.osm = osm;
+            this.extractCache = extractCache;
+            this.tileCache = tileCache;
         }
 
         @Override
-        public void service(Request request, Response response) throws Exception {
+        public void service(Request request, Response response) throws IOException {
+            if (request.getRequestURI().equals("/metrics")) {
+                // Metrics are scraped often and are quick to write, so they are served on the Grizzly worker thread.
+                response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+                Metrics.writeTo(response.getWriter());
+                return;
+            }
+            response.suspend();
+            extractExecutor.execute(() -> {
+                try {
+                    serveExtract(request, response);
+                } catch (Exception ex) {
+                    LOG.error("Could not respond to request {}.", request.getRequestURI(), ex);
+                } finally {
+                    response.resume();
+                }
+            });
+        }
+
+        private void serveExtract(Request request, Response response) throws IOException {
 
             response.setContentType("application/osm");
             String uri = request.getDecodedRequestURI();
             LOG.info("VEX request: {}", uri);
-            OutputStream outStream = response.getOutputStream();
+            long startNanos = System.nanoTime();
+            CountingOutputStream outStream = new CountingOutputStream(response.getOutputStream());
+            TileOSMSource tileSource = new TileOSMSource(osm);
+            tileSource.setParallel(extractPool);
+            tileSource.setTileCache(tileCache);
+            // Stop producing the extract as soon as the client goes away, rather than finishing it for nobody.
+            Connection<?> connection = request.getContext().getConnection();
+            CloseListener<Closeable, CloseType> closeListener = (closeable, type) -> tileSource.cancel();
+            connection.addCloseListener(closeListener);
+            Matcher tileMatcher = TILE_URI.matcher(uri);
+            String kind = request.getMethod() == Method.POST ? "polygon" : tileMatcher.matches() ? "tile" : "bbox";
+            String coding = contentCoding(request, uri);
+            if (uri.endsWith(".txt")) {
+                // Text extracts are sent with different codings depending on the request, which caches must respect.
+                response.setHeader("Vary", "Accept-Encoding");
+            }
+            OutputStream extractOut = outStream;
             try {
-                if(!uri.contains(",") || uri.contains(";")){
-                    writeError400(response, outStream);
-                    return;
-                }
-                int suffixIndex = uri.lastIndexOf('.');
-                String[] coords = uri.substring(1, suffixIndex).split("[,;]");
-                if (coords.length < 4) {
-                    writeError400(response, outStream);
-                    return;
-                }
-                double minLat = Double.parseDouble(coords[0]);
-                double minLon = Double.parseDouble(coords[1]);
-                double maxLat = Double.parseDouble(coords[2]);
-                double maxLon = Double.parseDouble(coords[3]);
-                if (minLat >= maxLat || minLon >= maxLon || minLat < -90 || maxLat > 90 || minLon < -180 || maxLon > 180) {
-                    throw new IllegalArgumentException();
-                }
-                /* Respond to head requests to let the client know the server is alive and the request is valid. */
-                if (request.getMethod() == Method.HEAD) {
-                    response.setStatus(HttpStatus.OK_200);
-                    return;
+                if (request.getMethod() == Method.POST) {
+                    // The body of a POST request is a GeoJSON or WKT polygon that the extract is clipped to.
+                    String body = readPolygon(request);
+                    tileSource.setPolygon(Polygon.parse(body));
+                    if (OSMEntitySink.forStream(uri, outStream) == null) {
+                        writeError400(response, outStream);
+                        return;
+                    }
+                    try (AdmissionController.Permit permit = admissionController.admit(tileSource)) {
+                        // The status must be set before the first byte of the extract commits the response.
+                        response.setStatus(HttpStatus.OK_200);
+                        extractOut = encodeOutput(response, coding, outStream);
+                        tileSource.copyTo(OSMEntitySink.forStream(uri, extractOut));
+                    }
+                } else {
+                    if (tileMatcher.matches()) {
+                        int zoom = Integer.parseInt(tileMatcher.group(1));
+                        if (zoom < MIN_TILE_ZOOM || zoom > MAX_TILE_ZOOM) {
+                            throw new IllegalArgumentException();
+                        }
+                        tileSource.setTile(zoom, Integer.parseInt(tileMatcher.group(2)),
+                                Integer.parseInt(tileMatcher.group(3)));
+                    } else {
+                        if (!uri.contains(",") || uri.contains(";")) {
+                            writeError400(response, outStream);
+                            return;
+                        }
+                        int suffixIndex = uri.lastIndexOf('.');
+                        String[] coords = uri.substring(1, suffixIndex).split("[,;]");
+                        if (coords.length < 4) {
+                            writeError400(response, outStream);
+                            return;
+                        }
+                        double minLat = Double.parseDouble(coords[0]);
+                        double minLon = Double.parseDouble(coords[1]);
+                        double maxLat = Double.parseDouble(coords[2]);
+                        double maxLon = Double.parseDouble(coords[3]);
+                        if (minLat >= maxLat || minLon >= maxLon || minLat < -90 || maxLat > 90 || minLon < -180 || maxLon > 180) {
+                            throw new IllegalArgumentException();
+                        }
+                        tileSource.setBoundingBox(minLat, minLon, maxLat, maxLon);
+                    }
+                    // An extract of whole tiles only changes when a replication update touches them, so it can be
+                    // cached anywhere as long as it is revalidated against these headers.
+                    long version = extractCache.version(tileSource);
+                    if (version == Long.MAX_VALUE) {
+                        response.setHeader("Cache-Control", "no-store");
+                    } else {
+                        // Each coding of an extract is a different representation, so it needs its own strong ETag.
+                        String etag = "\"" + tileSource.getMinX() + "_" + tileSource.getMinY() + "_" +
+                                tileSource.getMaxX() + "_" + tileSource.getMaxY() + "_" + version +
+                                uri.substring(uri.lastIndexOf('.')) + (coding == null ? "" : "+" + coding) + "\"";
+                        response.setHeader("ETag", etag);
+                        response.setHeader("Cache-Control", "public, no-cache");
+                        if (version > 0) response.setDateHeader("Last-Modified", version * 1000);
+                        if (notModified(request, etag, version)) {
+                            response.setStatus(HttpStatus.NOT_MODIFIED_304);
+                            return;
+                        }
+                    }
+                    /* Respond to head requests to let the client know the server is alive and the request is valid. */
+                    if (request.getMethod() == Method.HEAD) {
+                        response.setStatus(HttpStatus.OK_200);
+                        return;
+                    }
+                    // Rectangular extracts are often requested repeatedly, and are served from the cache if possible.
+                    try (AdmissionController.Permit permit = admissionController.admit(tileSource)) {
+                        // The status must be set before the first byte of the extract commits the response.
+                        response.setStatus(HttpStatus.OK_200);
+                        extractOut = encodeOutput(response, coding, outStream);
+                        extractCache.copy(tileSource, uri, extractOut);
+                    }
                 }
-
-                OSMEntitySink sink = OSMEntitySink.forStream(uri, outStream);
-                TileOSMSource tileSource = new TileOSMSource(osm);
-                tileSource.setBoundingBox(minLat, minLon, maxLat, maxLon);
-                tileSource.copyTo(sink);
-                response.setStatus(HttpStatus.OK_200);
             } catch (IllegalArgumentException ex) {
                 LOG.error("Could not process request with bad URI format {}.", uri);
-                writeError400(response, outStream);
+                extractOut = writeError(response, extractOut, outStream, HttpStatus.BAD_REQUEST_400.getStatusCode(),
+                        USAGE);
+            } catch (AdmissionController.RejectedException ex) {
+                LOG.info("Refused request {}: {}", uri, ex.getMessage());
+                extractOut = writeError(response, extractOut, outStream, ex.status, ex.getMessage() + "\n");
+                if (ex.status == 429) response.setHeader("Retry-After", "60");
+            } catch (CancellationException ex) {
+                LOG.info("Stopped producing extract {} because the client disconnected.", uri);
             } catch (Exception ex) {
                 LOG.error("An internal error occurred while processing {}.", uri, ex);
-                response.setContentType("text/plain");
-                response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
-                outStream.write("An internal error occurred.".getBytes());
+                extractOut = writeError(response, extractOut, outStream,
+                        HttpStatus.INTERNAL_SERVER_ERROR_500.getStatusCode(), "An internal error occurred.\n");
             } finally {
-                outStream.close();
+                connection.removeCloseListener(closeListener);
+                // Closing a compressing stream also finishes it and closes the response stream beneath it.
+                extractOut.close();
+                REQUEST_SECONDS.labels(kind).observeSince(startNanos);
+                RESPONSES.labels(Integer.toString(response.getStatus())).inc();
+                RESPONSE_BYTES.add(outStream.getCount());
             }
         }
 
-        private static void writeError400(Response response, OutputStream outStream) throws IOException {
+        /**
+         * Read the body of a POST request, refusing it if it is longer than MAX_POLYGON_BYTES. Bodies without a
+         * declared length are read up to that limit.
+         */
+        private static String readPolygon(Request request) throws IOException, AdmissionController.RejectedException {
+            long contentLength = request.getContentLengthLong();
+            byte[] body = null;
+            if (contentLength <= MAX_POLYGON_BYTES) {
+                body = request.getInputStream().readNBytes(MAX_POLYGON_BYTES + 1);
+            }
+            if (body == null || body.length > MAX_POLYGON_BYTES) {
+                throw new AdmissionController.RejectedException(413,
+                        "The polygon is longer than " + MAX_POLYGON_BYTES + " bytes.");
+            }
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Evaluate the conditional request headers against the current validators of an extract, giving precedence to
+         * If-None-Match as required by RFC 7232.
+         * @return whether the client already holds the current version of the extract.
+         */
+        private static boolean notModified(Request request, String etag, long version) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    // Weak comparison is used for If-None-Match.
+                    if (tag.startsWith("W/")) tag = tag.substring(2);
+                    if (tag.equals("*") || tag.equals(etag)) return true;
+                }
+                return false;
+            }
+            if (version > 0) {
+                try {
+                    long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+                    return ifModifiedSince >= 0 && version * 1000 <= ifModifiedSince;
+                } catch (IllegalArgumentException e) {
+                    // An unparseable date is ignored.
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Text extracts are large and compress well, so they are gzipped for clients that accept it. The other formats
+         * are already compressed internally and are sent as they are.
+         * @return the content coding with which the requested extract is sent, or null if it is sent as it is.
+         */
+        private static String contentCoding(Request request, String uri) {
+            if (!uri.endsWith(".txt")) return null;
+            return acceptsGzip(request.getHeader("Accept-Encoding")) ? "gzip" : null;
+        }
+
+        /** @return the stream the extract should be written to, which encodes it with the given content coding. */
+        private static OutputStream encodeOutput(Response response, String coding, OutputStream out)
+                throws IOException {
+            if (coding == null) return out;
+            response.setHeader("Content-Encoding", coding);
+            return new GzipOutputStream(out);
+        }
+
+        /** Compresses an extract, and frees the native memory of the compressor if the extract is abandoned. */
+        private static class GzipOutputStream extends BufferedOutputStream {
+
+            GzipOutputStream(OutputStream out) throws IOException {
+                super(new Deflating(out), GZIP_BUFFER_SIZE);
+            }
+
+            /** Release the compressor without finishing the stream or writing anything further to it. */
+            void abandon() {
+                ((Deflating) out).end();
+            }
+
+            private static class Deflating extends GZIPOutputStream {
+                Deflating(OutputStream out) throws IOException {
+                    super(out, GZIP_BUFFER_SIZE);
+                }
+
+                void end() {
+                    def.end();
+                }
+            }
+        }
+
+        /** @return whether the given Accept-Encoding header allows gzip, treating a quality value of zero as refusal. */
+        private static boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) return false;
+            for (String coding : acceptEncoding.split(",")) {
+                String[] params = coding.split(";");
+                String name = params[0].trim();
+                if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) continue;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    if (param.matches("q=0(\\.0*)?")) return false;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Answer with an error in place of the extract. Anything written of the extract so far is discarded along with
+         * the headers describing it, such as its content coding, so the message is sent on its own and as it is. Once
+         * part of the response has been sent though, it can only be cut short.
+         * @return the stream to close when the response is finished, which is the extract stream if the error could
+         *         not be reported.
+         */
+        private static OutputStream writeError(Response response, OutputStream extractOut, OutputStream outStream,
+                                               int status, String message) throws IOException {
+            if (response.isCommitted()) {
+                LOG.warn("Could not report error {} because the response has already been sent in part.", status);
+                return extractOut;
+            }
+            if (extractOut instanceof GzipOutputStream) {
+                ((GzipOutputStream) extractOut).abandon();
+            }
+            response.reset();
             response.setContentType("text/plain");
-            response.setStatus(HttpStatus.BAD_REQUEST_400);
-            outStream.write("URI format: /min_lat,min_lon,max_lat,max_lon[.pbf|.vex] (all coords in decimal degrees)\n".getBytes());
+            response.setStatus(status);
+            outStream.write(message.getBytes());
+            return outStream;
+        }
+
+        private static void writeError400(Response response, OutputStream outStream) throws IOException {
+            writeError(response, outStream, outStream, HttpStatus.BAD_REQUEST_400.getStatusCode(), USAGE);
         }
 
     }
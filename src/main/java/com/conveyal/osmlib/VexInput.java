@@ -8,7 +8,6 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
 
 /**
  * Reads a stream of VEX data, constructing OSM model objects from the stream and pushing them through to a sink.
@@ -89,18 +88,18 @@ public class VexInput implements OSMEntitySource {
         // TODO check that byte stream is exhausted, number of entities matches expected.
     }
 
-    public List<OSMEntity.Tag> readTags() throws IOException {
-        OSMEntity tagged = new Node();
+    /** Read the tags of an entity from the VEX stream, adding them to the given entity. */
+    public void readTags(OSMEntity tagged) throws IOException {
         int nTags = vin.readUInt32();
         if (nTags > 500) {
             throw new RuntimeException(String.format("Entity has %d tags, this looks like a corrupted file.", nTags));
         }
-        for (int i = 0; i < nTags; i++) {
-            String key = vin.readString();
-            String val = vin.readString();
-            tagged.addTag(key, val);
+        if (nTags == 0) return;
+        String[] keysAndValues = new String[nTags * 2];
+        for (int i = 0; i < keysAndValues.length; i++) {
+            keysAndValues[i] = vin.readString();
         }
-        return tagged.tags;
+        tagged.setTags(keysAndValues);
     }
 
     public void readNode() throws IOException {
@@ -108,7 +107,7 @@ public class VexInput implements OSMEntitySource {
         Node node = new Node();
         long idDelta = vin.readSInt64();
         id += idDelta;
-        node.tags = readTags();
+        readTags(node);
         node.fixedLat = (int) (prevFixedLat + vin.readSInt64());
         node.fixedLon = (int) (prevFixedLon + vin.readSInt64());
         prevFixedLat = node.fixedLat;
@@ -122,7 +121,7 @@ public class VexInput implements OSMEntitySource {
         Way way = new Way();
         long idDelta = vin.readSInt64();
         id += idDelta;
-        way.tags = readTags();
+        readTags(way);
         int nNodes = vin.readUInt32();
         way.nodes = new long[nNodes];
         for (int i = 0; i < nNodes; i++) {
@@ -140,7 +139,7 @@ public class VexInput implements OSMEntitySource {
         Relation relation = new Relation();
         long idDelta = vin.readSInt64();
         id += idDelta;
-        relation.tags = readTags();
+        readTags(relation);
         int nMembers = vin.readUInt32();
         for (int i = 0; i < nMembers; i++) {
             Relation.Member member = new Relation.Member();
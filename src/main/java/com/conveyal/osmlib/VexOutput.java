@@ -5,7 +5,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.List;
 
 /**
  * Consumes OSM entity objects and writes a stream of VEX data blocks to a specified output stream.
@@ -94,17 +93,10 @@ public class VexOutput implements OSMEntitySink {
      * Writes out a list of tags for the given OSM entity. This code is the same for all entity types.
      */
     private void writeTags(OSMEntity tagged) throws IOException {
-        List<OSMEntity.Tag> tags = tagged.tags;
-        // TODO This could stand a little more abstraction, like List<Tag> getTags()
-        if (tagged.tags == null) {
-            vout.writeUInt32(0);
-        } else {
-            vout.writeUInt32(tags.size());
-            for (OSMEntity.Tag tag : tagged.tags) {
-                if (tag.value == null) tag.value = "";
-                vout.writeString(tag.key);
-                vout.writeString(tag.value);
-            }
+        vout.writeUInt32(tagged.getTagCount());
+        for (int t = 0; t < tagged.getTagCount(); t++) {
+            vout.writeString(tagged.getTagKey(t));
+            vout.writeString(tagged.getTagValue(t));
         }
     }
 
@@ -129,6 +121,11 @@ public class VexOutput implements OSMEntitySink {
         LOG.info("Finished writing VEX format.");
     }
 
+    @Override
+    public void abort() {
+        if (blockWriter != null) blockWriter.abort();
+    }
+
     @Override
     public void writeNode(long id, Node node) throws IOException {
         checkBlockTransition(VexFormat.VEX_NODE);
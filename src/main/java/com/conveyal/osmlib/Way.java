@@ -11,7 +11,7 @@ public class Way extends OSMEntity implements Serializable {
     
     @Override
     public String toString() {
-        return String.format("Way with %d tags and %d nodes", tags.size(), nodes.length);
+        return String.format("Way with %d tags and %d nodes", getTagCount(), nodes.length);
     }
 
     @Override
@@ -6,7 +6,7 @@ package com.conveyal.osmlib;
 public class WebMercatorTile {
 
     //http://www.maptiler.org/google-maps-coordinates-tile-bounds-projection/
-    public final int ZOOM = 12;
+    public static final int ZOOM = 12;
     public final int xtile, ytile;
 
     /**
@@ -18,4 +18,14 @@ public class WebMercatorTile {
                 + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << ZOOM));
     }
 
+    /** @return the longitude of the western edge of tiles with the given x tile number. */
+    public static double tileWestLon(int xtile) {
+        return (double) xtile / (1 << ZOOM) * 360 - 180;
+    }
+
+    /** @return the latitude of the northern edge of tiles with the given y tile number. */
+    public static double tileNorthLat(int ytile) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2.0 * ytile / (1 << ZOOM)))));
+    }
+
 }
@@ -0,0 +1,42 @@
+package com.conveyal.osmlib.main;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.osmlib.ReplicationSource;
+import com.conveyal.osmlib.Updater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class Replay {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Replay.class);
+
+    /**
+     * This main method applies a range of replication updates to an existing database as fast as possible, and reports
+     * how long it took. The updates can be read from a copy of the replication tree on the local filesystem, so that
+     * the throughput of the updater can be measured without depending on the network.
+     */
+    public static void main(String[] args) {
+
+        if (args.length < 4) {
+            System.err.println("usage: Replay database.db replication-directory|replication-url first-seq last-seq");
+            System.exit(0);
+        }
+        OSM osm = new OSM(args[0]);
+        ReplicationSource source = ReplicationSource.forLocation(args[1]);
+        int firstSequenceNumber = Integer.parseInt(args[2]);
+        int lastSequenceNumber = Integer.parseInt(args[3]);
+
+        long startTime = System.currentTimeMillis();
+        Updater updater = new Updater(osm, source);
+        // Nothing else runs alongside the replay, so all processors are used to apply the updates.
+        updater.setParallel(ForkJoinPool.commonPool());
+        int nApplied = updater.replay(firstSequenceNumber, lastSequenceNumber);
+        double seconds = (System.currentTimeMillis() - startTime) / 1000D;
+        osm.close();
+        LOG.info("Applied {} of {} updates from {} in {} sec ({} updates per sec).", nApplied,
+                lastSequenceNumber - firstSequenceNumber + 1, source, seconds, String.format("%.2f", nApplied / seconds));
+    }
+
+}
@@ -228,18 +228,21 @@ public class VarInt {
             writeRawVarint32(out, 0);
             return;
         }
-        writeRawVarint32(out, tagged.tags.size());
-        for (OSMEntity.Tag tag : tagged.tags) {
-            writeString(out, tag.key);
-            writeString(out, tag.value);
+        writeRawVarint32(out, tagged.getTagCount());
+        for (int t = 0; t < tagged.getTagCount(); t++) {
+            writeString(out, tagged.getTagKey(t));
+            writeString(out, tagged.getTagValue(t));
         }
     }
 
     public static void readTags(DataInput in, OSMEntity tagged) throws IOException {
         int nTags = readRawVarint32(in);
-        for (int i = 0; i < nTags; i++) {
-            tagged.addTag(readString(in), readString(in));
+        if (nTags == 0) return;
+        String[] keysAndValues = new String[nTags * 2];
+        for (int i = 0; i < keysAndValues.length; i++) {
+            keysAndValues[i] = readString(in);
         }
+        tagged.setTags(keysAndValues);
     }
 
 
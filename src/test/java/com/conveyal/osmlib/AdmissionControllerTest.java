@@ -0,0 +1,61 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+public class AdmissionControllerTest extends TestCase {
+
+    private OSM osm;
+
+    @Override
+    public void setUp() {
+        osm = new OSM(null);
+        osm.tileIndexing = true;
+        osm.readFromFile("./src/test/resources/bangor_maine.osm.pbf");
+        System.setProperty("vex.admission.maxTiles", "100");
+        System.setProperty("vex.admission.smallWays", "50");
+        System.setProperty("vex.admission.largeConcurrency", "1");
+        System.setProperty("vex.admission.largeQueue", "0");
+    }
+
+    @Override
+    public void tearDown() {
+        osm.close();
+        System.clearProperty("vex.admission.maxTiles");
+        System.clearProperty("vex.admission.smallWays");
+        System.clearProperty("vex.admission.largeConcurrency");
+        System.clearProperty("vex.admission.largeQueue");
+    }
+
+    public void testAdmission() throws Exception {
+        AdmissionController admissionController = new AdmissionController();
+
+        TileOSMSource huge = new TileOSMSource(osm);
+        huge.setTileRange(0, 0, 99, 99);
+        try {
+            admissionController.admit(huge);
+            fail("Request covering too many tiles should be refused.");
+        } catch (AdmissionController.RejectedException e) {
+            assertEquals(413, e.status);
+        }
+
+        TileOSMSource city = new TileOSMSource(osm);
+        city.setBoundingBox(44.78, -68.80, 44.82, -68.74);
+        assertTrue(city.estimateWays(Long.MAX_VALUE) > 50);
+        assertEquals(10, city.estimateWays(10));
+        try (AdmissionController.Permit permit = admissionController.admit(city)) {
+            // The only large extract slot is taken and no requests may wait for it.
+            try {
+                admissionController.admit(city);
+                fail("Request should be refused while the large extract slot is taken.");
+            } catch (AdmissionController.RejectedException e) {
+                assertEquals(429, e.status);
+            }
+            // Small extracts are not held up by large ones.
+            TileOSMSource empty = new TileOSMSource(osm);
+            empty.setTileRange(0, 0, 1, 1);
+            admissionController.admit(empty).close();
+        }
+        admissionController.admit(city).close();
+    }
+
+}
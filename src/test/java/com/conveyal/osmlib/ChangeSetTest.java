@@ -0,0 +1,170 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+
+public class ChangeSetTest extends TestCase {
+
+    private OSM osm;
+
+    @Override
+    public void setUp() {
+        osm = new OSM(null);
+        osm.nodes.put(1L, new Node(10, 10));
+        osm.nodes.put(2L, new Node(10.01, 10.01));
+        Way way = new Way();
+        way.nodes = new long[] { 1, 2 };
+        osm.ways.put(10L, way);
+        osm.indexWay(10, way);
+    }
+
+    @Override
+    public void tearDown() {
+        osm.close();
+    }
+
+    private static void parse(ChangeSet changeSet, String osmChange) throws Exception {
+        new OSMChangeParser().parse(new ByteArrayInputStream(osmChange.getBytes(StandardCharsets.UTF_8)), changeSet);
+    }
+
+    private static long wayKey(double lat, double lon) {
+        WebMercatorTile tile = new WebMercatorTile(lat, lon);
+        return TileKey.encode(tile.xtile, tile.ytile, 10);
+    }
+
+    /** Consecutive diffs must be reduced to the last version of each entity, and creations cancelled by deletions. */
+    public void testCoalesce() throws Exception {
+        ChangeSet changeSet = new ChangeSet();
+        parse(changeSet, "<osmChange version=\"0.6\">" +
+                "<modify><node id=\"1\" lat=\"20\" lon=\"20\"/></modify>" +
+                "<create><node id=\"3\" lat=\"1\" lon=\"1\"/><node id=\"4\" lat=\"2\" lon=\"2\"/></create>" +
+                "</osmChange>");
+        parse(changeSet, "<osmChange version=\"0.6\">" +
+                "<modify><node id=\"1\" lat=\"30\" lon=\"30\"><tag k=\"name\" v=\"moved\"/></node>" +
+                "<way id=\"10\"><nd ref=\"3\"/><nd ref=\"2\"/></way></modify>" +
+                "<delete><node id=\"4\" lat=\"2\" lon=\"2\"/><node id=\"2\" lat=\"10.01\" lon=\"10.01\"/></delete>" +
+                "</osmChange>");
+        assertEquals(3, changeSet.nodes.entities.size());
+        assertFalse(changeSet.nodes.entities.containsKey(4));
+        assertEquals(30.0, changeSet.nodes.entities.get(1).getLat(), 1e-6);
+        assertNull(changeSet.nodes.entities.get(2));
+        assertEquals(4, changeSet.size());
+
+        changeSet.applyTo(osm);
+        assertEquals(30.0, osm.nodes.get(1L).getLat(), 1e-6);
+        assertTrue(osm.nodes.containsKey(3L));
+        assertFalse(osm.nodes.containsKey(2L));
+        assertFalse(osm.nodes.containsKey(4L));
+        // The way must have been removed from the index at its old location before its nodes changed.
+        assertFalse(osm.index.contains(wayKey(10, 10)));
+        assertTrue(osm.index.contains(wayKey(1, 1)));
+        assertEquals(1, osm.index.size());
+    }
+
+    /** Ways must be moved in the spatial index when their first node moves, even if they are not changed themselves. */
+    public void testMovedNodeReindexesWays() throws Exception {
+        // The index of ways by node is only filled once a database is to be updated.
+        assertTrue(osm.waysByNode.isEmpty());
+        osm.indexWaysByNode();
+        assertEquals(10L, osm.waysOfNode(2).sum());
+        ChangeSet changeSet = new ChangeSet();
+        parse(changeSet, "<osmChange version=\"0.6\">" +
+                "<modify><node id=\"1\" lat=\"20\" lon=\"20\"/></modify>" +
+                "<create><node id=\"5\" lat=\"20.01\" lon=\"20.01\"/>" +
+                "<way id=\"11\"><nd ref=\"5\"/><nd ref=\"2\"/></way></create>" +
+                "</osmChange>");
+        changeSet.applyTo(osm);
+        assertFalse(osm.index.contains(wayKey(10, 10)));
+        assertTrue(osm.index.contains(wayKey(20, 20)));
+        assertEquals(2, osm.index.size());
+        // The index of ways by node follows the changes to the ways.
+        assertEquals(2, osm.waysOfNode(2).count());
+        assertEquals(11L, osm.waysOfNode(5).sum());
+    }
+
+    /** Applying a large change set in parallel must give the same result as applying it on one thread. */
+    public void testParallelApply() throws Exception {
+        ChangeSet changeSet = new ChangeSet();
+        for (long n = 1; n <= 20000; n++) {
+            Node node = new Node(10 + n * 1e-4, 10 + (n % 100) * 1e-3);
+            if (n % 10 == 0) node.addTag("amenity", "bench");
+            changeSet.nodes.put(n, node, n > 2);
+        }
+        for (long w = 10; w < 3010; w++) {
+            Way way = new Way();
+            way.nodes = new long[] { (w - 10) * 6 + 1, (w - 10) * 6 + 2, (w - 10) * 6 + 3 };
+            changeSet.ways.put(w, way, w > 10);
+        }
+        changeSet.nodes.delete(5);
+        OSM parallel = new OSM(null);
+        try {
+            parallel.nodes.putAll(osm.nodes);
+            parallel.ways.putAll(osm.ways);
+            parallel.indexWay(10, osm.ways.get(10L));
+            ForkJoinPool pool = new ForkJoinPool(4);
+            changeSet.applyTo(parallel, pool);
+            pool.shutdown();
+            changeSet.applyTo(osm);
+            assertEquals(osm.nodes.size(), parallel.nodes.size());
+            assertEquals(19999, parallel.nodes.size());
+            assertEquals(3000, parallel.ways.size());
+            assertEquals(osm.index, parallel.index);
+            assertEquals(3000, parallel.index.size());
+            assertEquals(osm.nodeIndex, parallel.nodeIndex);
+            assertEquals(2000, parallel.nodeIndex.size());
+            assertEquals(osm.waysByNode, parallel.waysByNode);
+        } finally {
+            parallel.close();
+        }
+    }
+
+    /** Readers of a database with snapshots must only see a change set once it has been applied and published. */
+    public void testSnapshotIsolation() throws Exception {
+        OSM live = new OSM(null, true);
+        try {
+            live.nodes.put(1L, new Node(10, 10));
+            live.nodes.put(2L, new Node(10.01, 10.01));
+            Way way = new Way();
+            way.nodes = new long[] { 1, 2 };
+            live.ways.put(10L, way);
+            live.indexWay(10, way);
+            live.timestamp.set(1000);
+            live.publish();
+            OSM before = live.readView();
+            assertNotSame(live, before);
+
+            ChangeSet changeSet = new ChangeSet();
+            parse(changeSet, "<osmChange version=\"0.6\">" +
+                    "<create><node id=\"3\" lat=\"1\" lon=\"1\"/></create>" +
+                    "<modify><way id=\"10\"><nd ref=\"3\"/><nd ref=\"2\"/></way></modify>" +
+                    "<delete><node id=\"1\"/></delete>" +
+                    "</osmChange>");
+            changeSet.applyTo(live);
+            live.timestamp.set(2000);
+            // Until the changes are published, readers still see the database as it was.
+            assertSame(before, live.readView());
+            assertFalse(live.nodes.containsKey(1L));
+            assertTrue(before.nodes.containsKey(1L));
+            assertFalse(before.nodes.containsKey(3L));
+            assertEquals(1, before.ways.get(10L).nodes[0]);
+            assertTrue(before.index.contains(wayKey(10, 10)));
+            assertFalse(before.index.contains(wayKey(1, 1)));
+            assertEquals(1000, before.timestamp.get());
+
+            live.publish();
+            OSM after = live.readView();
+            assertTrue(after.nodes.containsKey(3L));
+            assertEquals(3, after.ways.get(10L).nodes[0]);
+            assertTrue(after.index.contains(wayKey(1, 1)));
+            assertEquals(2000, after.timestamp.get());
+            // A reader that took a view earlier keeps reading it consistently.
+            assertTrue(before.nodes.containsKey(1L));
+        } finally {
+            live.close();
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class ExtractCacheTest extends TestCase {
+
+    private static final double MIN_LAT = 44.78, MIN_LON = -68.80, MAX_LAT = 44.82, MAX_LON = -68.74;
+
+    private static final long BASELINE = 1000;
+
+    private OSM osm;
+    private File directory;
+
+    @Override
+    public void setUp() throws Exception {
+        osm = new OSM(null);
+        osm.tileIndexing = true;
+        osm.readFromFile("./src/test/resources/bangor_maine.osm.pbf");
+        directory = Files.createTempDirectory("extracts").toFile();
+    }
+
+    @Override
+    public void tearDown() {
+        osm.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testTracker() {
+        TileChangeTracker tracker = new TileChangeTracker(BASELINE);
+        assertEquals(BASELINE, tracker.lastChange(0, 0, 4095, 4095));
+        tracker.markChanged(10, 20);
+        assertEquals(Long.MAX_VALUE, tracker.lastChange(5, 5, 10, 20));
+        assertEquals(BASELINE, tracker.lastChange(11, 5, 15, 25));
+        tracker.commit(2000);
+        assertEquals(2000, tracker.lastChange(5, 5, 10, 20));
+        assertEquals(2000, tracker.lastChange(0, 0, 4095, 4095));
+        assertEquals(BASELINE, tracker.lastChange(10, 21, 10, 21));
+    }
+
+    /** Repeated extracts must be served from the cache until a change touches their tiles. */
+    public void testCache() throws Exception {
+        TileChangeTracker tracker = new TileChangeTracker(BASELINE);
+        ExtractCache cache = new ExtractCache(directory, 1L << 30, tracker);
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+
+        byte[] first = extract(cache, source);
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith("_" + BASELINE + ".vex"));
+        assertTrue(Arrays.equals(first, Files.readAllBytes(files[0].toPath())));
+        assertTrue(Arrays.equals(first, extract(cache, source)));
+
+        // A change far away does not invalidate the extract.
+        tracker.markChanged(0, 0);
+        tracker.commit(2000);
+        extract(cache, source);
+        assertTrue(directory.listFiles()[0].getName().endsWith("_" + BASELINE + ".vex"));
+
+        // An update in progress inside the extract prevents it from being cached.
+        tracker.markChanged(source.getMinX(), source.getMinY());
+        assertTrue(Arrays.equals(first, extract(cache, source)));
+        assertEquals(0, directory.listFiles().length);
+
+        // Once the update is complete the extract is cached again with the new version.
+        tracker.commit(3000);
+        extract(cache, source);
+        files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith("_3000.vex"));
+
+        // Extracts that are still valid survive a restart.
+        new ExtractCache(directory, 1L << 30, new TileChangeTracker(3000));
+        assertEquals(1, directory.listFiles().length);
+        new ExtractCache(directory, 1L << 30, new TileChangeTracker(4000));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private static byte[] extract (ExtractCache cache, TileOSMSource source) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.copy(source, "/extract.vex", out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Random;
+
+public class HilbertIndexTest extends TestCase {
+
+    /** Check that the curve ranges for a rectangle contain exactly the tiles inside that rectangle. */
+    public void testRanges() {
+        for (SpaceFillingCurve curve : SpaceFillingCurve.values()) {
+            checkRanges(curve);
+        }
+    }
+
+    private void checkRanges (SpaceFillingCurve curve) {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            int minX = random.nextInt(SpaceFillingCurve.GRID_SIZE - 40);
+            int minY = random.nextInt(SpaceFillingCurve.GRID_SIZE - 40);
+            int maxX = minX + random.nextInt(30);
+            int maxY = minY + random.nextInt(30);
+            long[] ranges = curve.ranges(minX, minY, maxX, maxY);
+            for (int x = minX - 5; x <= maxX + 5; x++) {
+                for (int y = minY - 5; y <= maxY + 5; y++) {
+                    boolean inside = x >= minX && x <= maxX && y >= minY && y <= maxY;
+                    assertEquals(inside, inRanges(curve.encode(x, y), ranges));
+                }
+            }
+        }
+        // The whole grid should collapse into a single range.
+        long[] all = curve.ranges(0, 0, SpaceFillingCurve.GRID_SIZE, SpaceFillingCurve.GRID_SIZE);
+        assertEquals(2, all.length);
+        assertEquals(0, all[0]);
+        assertEquals((long) SpaceFillingCurve.GRID_SIZE * SpaceFillingCurve.GRID_SIZE, all[1]);
+    }
+
+    /** Check that tile numbers and entity IDs can be recovered from packed spatial index keys. */
+    public void testTileKeys() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            int x = random.nextInt(SpaceFillingCurve.GRID_SIZE);
+            int y = random.nextInt(SpaceFillingCurve.GRID_SIZE);
+            long id = random.nextLong() & TileKey.MAX_ID;
+            long key = TileKey.encode(x, y, id);
+            assertTrue(key >= 0);
+            assertEquals(x, TileKey.xtile(key));
+            assertEquals(y, TileKey.ytile(key));
+            assertEquals(id, TileKey.entityId(key));
+        }
+    }
+
+    private static boolean inRanges (long d, long[] ranges) {
+        for (int r = 0; r < ranges.length; r += 2) {
+            if (d >= ranges[r] && d < ranges[r + 1]) return true;
+        }
+        return false;
+    }
+
+    /** Check that queries on the Hilbert index find the same ways as the MapDB spatial index. */
+    public void testQuery() throws Exception {
+        File dbFile = File.createTempFile("hilbert", ".vexdb");
+        dbFile.delete();
+        OSM osm = new OSM(dbFile.getPath());
+        try {
+            osm.tileIndexing = true;
+            osm.readFromFile("./src/test/resources/bangor_maine.osm.pbf");
+            osm.buildHilbertIndex();
+            HilbertIndex hilbertIndex = osm.freshHilbertIndex();
+            assertNotNull(hilbertIndex);
+            assertEquals(osm.index.size(), hilbertIndex.size);
+
+            WebMercatorTile tile = new WebMercatorTile(44.80, -68.77);
+            for (int radius = 0; radius < 3; radius++) {
+                int minX = tile.xtile - radius, maxX = tile.xtile + radius;
+                int minY = tile.ytile - radius, maxY = tile.ytile + radius;
+                TLongSet expected = new TLongHashSet();
+                for (long key : osm.index) {
+                    int x = TileKey.xtile(key), y = TileKey.ytile(key);
+                    if (x >= minX && x <= maxX && y >= minY && y <= maxY) expected.add(TileKey.entityId(key));
+                }
+                long[] found = hilbertIndex.query(minX, minY, maxX, maxY);
+                assertEquals(expected.size(), found.length);
+                assertTrue(expected.containsAll(found));
+                assertEquals(found.length, hilbertIndex.count(minX, minY, maxX, maxY));
+                if (radius > 0) assertTrue(found.length > 0);
+            }
+
+            // Once the database moves on to a new replication timestamp, the index must not be used anymore.
+            osm.timestamp.set(osm.timestamp.get() + 60);
+            assertNull(osm.freshHilbertIndex());
+        } finally {
+            osm.close();
+            new File(dbFile.getPath() + ".p").delete();
+            new File(dbFile.getPath() + ".t").delete();
+            new File(dbFile.getPath() + HilbertIndex.FILE_EXTENSION).delete();
+            dbFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+
+public class MetricsTest extends TestCase {
+
+    private static final Metrics.Counter COUNTER = new Metrics.Counter("test_things_total", "Things.", "kind");
+
+    private static final Metrics.Histogram HISTOGRAM = new Metrics.Histogram("test_seconds", "Durations.",
+            new double[] { 1, 10 });
+
+    private static final Metrics.Gauge GAUGE = new Metrics.Gauge("test_level", "Level.");
+
+    /** Metrics must be written in the Prometheus text format, with cumulative histogram buckets. */
+    public void testExposition() throws Exception {
+        COUNTER.labels("a \"quoted\" kind").add(2);
+        COUNTER.labels("a \"quoted\" kind").inc();
+        HISTOGRAM.observe(0.5);
+        HISTOGRAM.observe(5);
+        HISTOGRAM.observe(50);
+        GAUGE.set(() -> 1.5);
+        StringWriter writer = new StringWriter();
+        Metrics.writeTo(writer);
+        String text = writer.toString();
+        assertTrue(text.contains("# TYPE test_things_total counter\n"));
+        assertTrue(text.contains("test_things_total{kind=\"a \\\"quoted\\\" kind\"} 3\n"));
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"1\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"10\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_seconds_sum 55.5\n"));
+        assertTrue(text.contains("test_seconds_count 3\n"));
+        assertTrue(text.contains("test_level 1.5\n"));
+        try {
+            COUNTER.labels();
+            fail("Label values must match label names.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+public class OSMChangeParserTest extends TestCase {
+
+    /** Coordinates must be parsed exactly to seven decimal places, rounding any further digits. */
+    public void testParseFixed() {
+        assertEquals(100100000, OSMChangeParser.parseFixed("10.01"));
+        assertEquals(-687712345, OSMChangeParser.parseFixed("-68.7712345"));
+        assertEquals(447712346, OSMChangeParser.parseFixed("44.77123456"));
+        assertEquals(1800000000, OSMChangeParser.parseFixed("180"));
+        assertEquals(-5, OSMChangeParser.parseFixed("-.0000005"));
+        assertEquals(12000000, OSMChangeParser.parseFixed("1.2e0"));
+        for (double coordinate = -180; coordinate <= 180; coordinate += 0.1234567) {
+            String text = String.format(Locale.ROOT, "%.7f", coordinate);
+            assertEquals(text, Math.round(Double.parseDouble(text) * 1e7), OSMChangeParser.parseFixed(text));
+        }
+    }
+
+    /** All kinds of entity must be parsed with their tags, node references and members, and deletes without coordinates. */
+    public void testParse() throws Exception {
+        String osmChange = "<?xml version='1.0' encoding='UTF-8'?>\n<osmChange version=\"0.6\" generator=\"test\">" +
+                "<modify><node id=\"1\" version=\"2\" lat=\"44.8\" lon=\"-68.77\"><tag k=\"amenity\" v=\"cafe\"/></node>" +
+                "<way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><tag k=\"highway\" v=\"residential\"/></way>" +
+                "<relation id=\"100\"><member type=\"way\" ref=\"10\" role=\"outer\"/>" +
+                "<member type=\"node\" ref=\"1\" role=\"\"/><tag k=\"type\" v=\"multipolygon\"/></relation></modify>" +
+                "<delete><node id=\"2\" version=\"3\"/></delete></osmChange>";
+        ChangeSet changeSet = new ChangeSet();
+        OSMChangeParser parser = new OSMChangeParser();
+        parser.parse(new ByteArrayInputStream(osmChange.getBytes(StandardCharsets.UTF_8)), changeSet);
+        assertEquals(4, parser.nParsed);
+        Node node = changeSet.nodes.entities.get(1);
+        assertEquals(448000000, node.fixedLat);
+        assertEquals(-687700000, node.fixedLon);
+        assertTrue(node.hasTag("amenity", "cafe"));
+        assertTrue(changeSet.nodes.entities.containsKey(2));
+        assertNull(changeSet.nodes.entities.get(2));
+        Way way = changeSet.ways.entities.get(10);
+        assertEquals(2, way.nodes.length);
+        assertEquals(2, way.nodes[1]);
+        assertTrue(way.hasTag("highway", "residential"));
+        Relation relation = changeSet.relations.entities.get(100);
+        assertEquals(2, relation.members.size());
+        assertEquals(OSMEntity.Type.WAY, relation.members.get(0).type);
+        assertEquals("outer", relation.members.get(0).role);
+        assertEquals(1, relation.members.get(1).id);
+    }
+
+}
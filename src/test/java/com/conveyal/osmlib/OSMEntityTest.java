@@ -48,4 +48,32 @@ public class OSMEntityTest extends TestCase{
     	assertEquals( tt.getTag("key"), "value" );
     	assertEquals( tt.getTag("foo"), "true" );
     }
+
+    public void testTagView(){
+        Way way = new Way();
+        assertTrue( way.getTags().isEmpty() );
+        way.addTag(new String("highway"), "residential");
+        way.addTag("name", null);
+        way.addOrReplaceTag("NAME", "Main Street");
+
+        assertEquals( 2, way.getTagCount() );
+        assertEquals( "name", way.getTagKey(1) );
+        assertEquals( "Main Street", way.getTagValue(1) );
+        assertEquals( new OSMEntity.Tag("highway", "residential"), way.getTags().get(0) );
+
+        // The list view writes through to the entity.
+        way.getTags().set(1, new OSMEntity.Tag("name", "High Street"));
+        assertEquals( "High Street", way.getTag("name") );
+
+        Way other = new Way();
+        other.setTagsFromString("highway=residential;name=High Street");
+        assertTrue( way.tagsEqual(other) );
+
+        other.setTags(new String("highway"), "service", "name", null);
+        // Equal keys are shared between entities.
+        assertSame( way.getTagKey(0), other.getTagKey(0) );
+        assertEquals( "", other.getTag("name") );
+        other.setTags();
+        assertTrue( other.hasNoTags() );
+    }
 }
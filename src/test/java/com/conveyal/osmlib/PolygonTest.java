@@ -0,0 +1,69 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+public class PolygonTest extends TestCase {
+
+    private static final String SQUARE_WITH_HOLE_WKT =
+            "POLYGON ((-69 44, -68 44, -68 45, -69 45, -69 44), (-68.6 44.4, -68.4 44.4, -68.4 44.6, -68.6 44.6, -68.6 44.4))";
+
+    private static final String TWO_SQUARES_GEOJSON = "{\"type\": \"Feature\", \"properties\": {}, \"geometry\": " +
+            "{\"type\": \"MultiPolygon\", \"coordinates\": [[[[-69, 44], [-68, 44], [-68, 45], [-69, 45], [-69, 44]]], " +
+            "[[[10, 50], [11, 50], [11, 51.5e0], [10, 51.5e0]]]]}}";
+
+    public void testWkt() {
+        Polygon polygon = Polygon.parse(SQUARE_WITH_HOLE_WKT);
+        assertTrue(polygon.contains(44.2, -68.8));
+        assertFalse(polygon.contains(44.5, -68.5)); // In the hole.
+        assertFalse(polygon.contains(45.5, -68.5));
+        assertEquals(44.0, polygon.minLat);
+        assertEquals(-68.0, polygon.maxLon);
+    }
+
+    public void testGeoJson() {
+        Polygon polygon = Polygon.parse(TWO_SQUARES_GEOJSON);
+        assertTrue(polygon.contains(44.5, -68.5));
+        assertTrue(polygon.contains(51, 10.5)); // The second ring is closed automatically.
+        assertFalse(polygon.contains(47, 0));
+        assertEquals(51.5, polygon.maxLat);
+    }
+
+    public void testMalformed() {
+        for (String bad : new String[] { "LINESTRING (0 0, 1 1)", "POLYGON ((0 0, 1 1))", "{\"coordinates\": [[[0, x]]]}" }) {
+            try {
+                Polygon.parse(bad);
+                fail("Should not parse " + bad);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /** Tile classifications must agree with point-in-polygon tests at the corners of each tile. */
+    public void testClassifyTiles() {
+        Polygon polygon = Polygon.parse(SQUARE_WITH_HOLE_WKT);
+        WebMercatorTile minTile = new WebMercatorTile(polygon.maxLat, polygon.minLon);
+        WebMercatorTile maxTile = new WebMercatorTile(polygon.minLat, polygon.maxLon);
+        int minX = minTile.xtile - 1, minY = minTile.ytile - 1, maxX = maxTile.xtile + 1, maxY = maxTile.ytile + 1;
+        byte[] classes = polygon.classifyTiles(minX, minY, maxX, maxY);
+        int nInside = 0;
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                byte tileClass = classes[(y - minY) * (maxX - minX + 1) + (x - minX)];
+                if (tileClass == Polygon.BOUNDARY) continue;
+                boolean inside = tileClass == Polygon.INSIDE;
+                if (inside) nInside++;
+                for (int corner = 0; corner < 4; corner++) {
+                    double lat = WebMercatorTile.tileNorthLat(y + corner / 2);
+                    double lon = WebMercatorTile.tileWestLon(x + corner % 2);
+                    // Nudge the corner into the tile to avoid testing points exactly on the boundary.
+                    lat += (corner / 2 == 0 ? -1e-9 : 1e-9);
+                    lon += (corner % 2 == 0 ? 1e-9 : -1e-9);
+                    assertEquals(inside, polygon.contains(lat, lon));
+                }
+            }
+        }
+        assertTrue(nInside > 0);
+    }
+
+}
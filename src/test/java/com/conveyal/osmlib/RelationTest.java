@@ -2,8 +2,50 @@ package com.conveyal.osmlib;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
 public class RelationTest extends TestCase {
 	public void testRelation(){
 		assertNotNull( new Relation() );
 	}
+
+	/**
+	 * Relations stored by earlier versions hold their tags as a List of Tag. The test database was written by such a
+	 * version, and holds a relation 1 with two tags and a way member, and a relation 2 without tags.
+	 */
+	public void testLegacyTags() throws Exception {
+		File dir = Files.createTempDirectory("legacy").toFile();
+		File dbFile = new File(dir, "legacy.db");
+		unzip("legacy_relations.db.gz", dbFile);
+		unzip("legacy_relations.db.p.gz", new File(dir, "legacy.db.p"));
+		OSM osm = new OSM(dbFile.getPath());
+		try {
+			Relation relation = osm.relations.get(1L);
+			assertEquals( 2, relation.getTagCount() );
+			assertEquals( "Bus 1", relation.getTag("name") );
+			assertEquals( new OSMEntity.Tag("type", "route"), relation.getTags().get(0) );
+			assertEquals( 1, relation.members.size() );
+			assertTrue( osm.relations.get(2L).hasNoTags() );
+
+			// A changed relation is stored in the current form, next to those still in the old one.
+			relation.addOrReplaceTag("name", "Bus 2");
+			osm.relations.put(1L, relation);
+			assertEquals( "Bus 2", osm.relations.get(1L).getTag("name") );
+			assertEquals( "route", osm.relations.get(1L).getTag("type") );
+		} finally {
+			osm.close();
+			for (File file : dir.listFiles()) file.delete();
+			dir.delete();
+		}
+	}
+
+	private static void unzip(String resource, File file) throws IOException {
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(new File("src/test/resources", resource).toPath()))) {
+			Files.copy(in, file.toPath());
+		}
+	}
 }
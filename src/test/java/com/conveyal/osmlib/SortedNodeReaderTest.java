@@ -0,0 +1,88 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SortedNodeReaderTest extends TestCase {
+
+    public void testRead() throws Exception {
+        Map<Long, Node> nodes = new HashMap<>();
+        for (long id = 0; id < 10000; id += 2) nodes.put(id, new Node(id * 1e-4, 0));
+        SortedNodeReader reader = new SortedNodeReader(nodes, new long[] { 2, 3, 4, 9998 });
+        SortedNodeReader.Batch batch = reader.nextBatch();
+        assertEquals(4, batch.ids.length);
+        assertEquals(2e-4, batch.nodes[0].getLat(), 1e-9);
+        assertNull(batch.nodes[1]);
+        assertNotNull(batch.nodes[3]);
+        assertNull(reader.nextBatch());
+    }
+
+    /**
+     * Dense batches from a sorted map are read with a range scan, merged with the requested IDs. The map holds only
+     * even IDs and every seventh ID is not requested, so both sides of the merge have gaps, and the requests span
+     * several batches. The last requested node is present, so the scan of each batch stops early on finding it.
+     */
+    public void testReadSorted() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        Map<Long, Node> nodes = new TreeMap<Long, Node>() {
+            @Override
+            public Node get(Object key) {
+                lookups.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        for (long id = 0; id < 20000; id += 2) nodes.put(id, new Node(id * 1e-4, 0));
+        long[] ids = new long[20000 - 20000 / 7];
+        int n = 0;
+        for (long id = 1; n < ids.length; id++) {
+            if (id % 7 != 0) ids[n++] = id;
+        }
+        checkBatches(new SortedNodeReader(nodes, ids), ids);
+        assertEquals(0, lookups.get());
+
+        // IDs too sparse for a range scan are looked up one by one.
+        long[] sparseIds = { 2, 3, 1000, 5000, 19998 };
+        checkBatches(new SortedNodeReader(nodes, sparseIds), sparseIds);
+        assertEquals(sparseIds.length, lookups.get());
+    }
+
+    private static void checkBatches(SortedNodeReader reader, long[] ids) throws IOException {
+        int n = 0;
+        for (SortedNodeReader.Batch batch; (batch = reader.nextBatch()) != null; ) {
+            for (int i = 0; i < batch.ids.length; i++, n++) {
+                long id = ids[n];
+                assertEquals(id, batch.ids[i]);
+                if (id % 2 == 0 && id < 20000) {
+                    assertEquals(id * 1e-4, batch.nodes[i].getLat(), 1e-9);
+                } else {
+                    assertNull(batch.nodes[i]);
+                }
+            }
+        }
+        assertEquals(ids.length, n);
+    }
+
+    /** A storage failure while reading must be handed to the consumer rather than leave it waiting forever. */
+    public void testStorageFailure() throws Exception {
+        Map<Long, Node> nodes = new HashMap<Long, Node>() {
+            @Override
+            public Node get(Object key) {
+                throw new IOError(new IOException("Storage failed."));
+            }
+        };
+        SortedNodeReader reader = new SortedNodeReader(nodes, new long[] { 1, 2, 3 });
+        try {
+            reader.nextBatch();
+            fail("The storage failure should have been reported.");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IOError);
+        }
+    }
+
+}
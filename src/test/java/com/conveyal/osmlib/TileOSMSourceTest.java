@@ -0,0 +1,256 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+
+public class TileOSMSourceTest extends TestCase {
+
+    private static final double MIN_LAT = 44.78, MIN_LON = -68.80, MAX_LAT = 44.82, MAX_LON = -68.74;
+
+    private OSM osm;
+
+    @Override
+    public void setUp() {
+        osm = new OSM(null);
+        osm.tileIndexing = true;
+        osm.readFromFile("./src/test/resources/bangor_maine.osm.pbf");
+    }
+
+    @Override
+    public void tearDown() {
+        osm.close();
+    }
+
+    /** Tagged nodes that are not part of any way must be included in extracts. */
+    public void testTaggedNodes() throws Exception {
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+        CollectingSink sink = new CollectingSink();
+        source.copyTo(sink);
+
+        WebMercatorTile minTile = new WebMercatorTile(MAX_LAT, MIN_LON);
+        WebMercatorTile maxTile = new WebMercatorTile(MIN_LAT, MAX_LON);
+        int nTagged = 0;
+        for (Map.Entry<Long, Node> entry : osm.nodes.entrySet()) {
+            Node node = entry.getValue();
+            if (node.hasNoTags()) continue;
+            WebMercatorTile tile = new WebMercatorTile(node.getLat(), node.getLon());
+            if (tile.xtile >= minTile.xtile && tile.xtile <= maxTile.xtile &&
+                tile.ytile >= minTile.ytile && tile.ytile <= maxTile.ytile) {
+                assertTrue(sink.nodeIds.contains(entry.getKey()));
+                nTagged++;
+            }
+        }
+        assertTrue(nTagged > 0);
+    }
+
+    /** The single-pass extract mode must produce the same entities as the two-pass mode, in ascending ID order. */
+    public void testSinglePass() throws Exception {
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+        CollectingSink twoPassSink = new CollectingSink();
+        source.copyTo(twoPassSink);
+        source.setSinglePass(true);
+        CollectingSink singlePassSink = new CollectingSink();
+        source.copyTo(singlePassSink);
+
+        assertTrue(singlePassSink.wayIds.size() > 0);
+        assertEquals(twoPassSink.nodeIds, singlePassSink.nodeIds);
+        assertEquals(twoPassSink.wayIds, singlePassSink.wayIds);
+        assertEquals(twoPassSink.relationIds, singlePassSink.relationIds);
+        assertTrue(singlePassSink.sorted);
+    }
+
+    /** The parallel extract mode must produce the same entities as the serial single-pass mode, in the same order. */
+    public void testParallel() throws Exception {
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+        source.setSinglePass(true);
+        CollectingSink serialSink = new CollectingSink();
+        source.copyTo(serialSink);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            source.setParallel(pool);
+            CollectingSink parallelSink = new CollectingSink();
+            source.copyTo(parallelSink);
+
+            assertTrue(parallelSink.wayIds.size() > 0);
+            assertEquals(serialSink.nodeIds, parallelSink.nodeIds);
+            assertEquals(serialSink.wayIds, parallelSink.wayIds);
+            assertEquals(serialSink.relationIds, parallelSink.relationIds);
+            assertTrue(parallelSink.sorted);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Extracts assembled from cached tiles must contain the same entities as the single-pass mode, in order. */
+    public void testTileCache() throws Exception {
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+        source.setSinglePass(true);
+        CollectingSink directSink = new CollectingSink();
+        source.copyTo(directSink);
+        source.setTileCache(new TileCache(osm, new TileChangeTracker(0), 1L << 30));
+        for (int i = 0; i < 2; i++) {
+            // The first copy fills the cache and the second is read from it.
+            CollectingSink cachedSink = new CollectingSink();
+            source.copyTo(cachedSink);
+            assertEquals(directSink.nodeIds, cachedSink.nodeIds);
+            assertEquals(directSink.wayIds, cachedSink.wayIds);
+            assertEquals(directSink.relationIds, cachedSink.relationIds);
+            assertTrue(cachedSink.sorted);
+        }
+    }
+
+    /**
+     * A polygon extract must contain every way with a node inside the polygon, and only ways that were also in the
+     * extract for the bounding box of the polygon.
+     */
+    public void testPolygon() throws Exception {
+        Polygon triangle = Polygon.parse(String.format(Locale.ROOT, "POLYGON ((%f %f, %f %f, %f %f))",
+                MIN_LON, MIN_LAT, MAX_LON, MIN_LAT, MIN_LON, MAX_LAT));
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+        CollectingSink boxSink = new CollectingSink();
+        source.copyTo(boxSink);
+        source.setPolygon(triangle);
+        CollectingSink polygonSink = new CollectingSink();
+        source.copyTo(polygonSink);
+
+        assertTrue(polygonSink.wayIds.size() > 0);
+        assertTrue(polygonSink.wayIds.size() < boxSink.wayIds.size());
+        assertTrue(boxSink.wayIds.containsAll(polygonSink.wayIds));
+        for (long wayId : boxSink.wayIds.toArray()) {
+            for (long nodeId : osm.ways.get(wayId).nodes) {
+                Node node = osm.nodes.get(nodeId);
+                if (node != null && triangle.contains(node)) {
+                    assertTrue(polygonSink.wayIds.contains(wayId));
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Tiles at other zoom levels must map to whole tiles at the zoom level of the spatial index. */
+    public void testSetTile() {
+        WebMercatorTile tile = new WebMercatorTile(MIN_LAT, MIN_LON);
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setTile(WebMercatorTile.ZOOM + 2, tile.xtile * 4 + 3, tile.ytile * 4 + 1);
+        assertEquals(1, source.countTiles());
+        assertEquals(tile.xtile, source.getMinX());
+        assertEquals(tile.ytile, source.getMaxY());
+        source.setTile(WebMercatorTile.ZOOM - 3, tile.xtile / 8, tile.ytile / 8);
+        assertEquals(64, source.countTiles());
+        assertEquals(tile.xtile / 8 * 8, source.getMinX());
+        assertEquals(tile.ytile / 8 * 8 + 7, source.getMaxY());
+        try {
+            source.setTile(8, 256, 0);
+            fail("Tile outside the world should be rejected.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /** Cancelling an extract must stop it promptly, from the thread producing it or any other. */
+    public void testCancel() throws Exception {
+        TileOSMSource source = new TileOSMSource(osm);
+        source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+        source.setSinglePass(true);
+        CollectingSink sink = new CollectingSink() {
+            @Override
+            public void writeWay(long id, Way way) {
+                super.writeWay(id, way);
+                source.cancel();
+            }
+        };
+        try {
+            source.copyTo(sink);
+            fail("Extract should have been cancelled.");
+        } catch (CancellationException e) {
+            assertEquals(1, sink.wayIds.size());
+        }
+    }
+
+    /** A failure to write the output must stop the extract, leaving no writer threads behind. */
+    public void testWriteFailure() throws Exception {
+        for (String name : new String[] { "extract.pbf", "extract.vex" }) {
+            TileOSMSource source = new TileOSMSource(osm);
+            source.setBoundingBox(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON);
+            source.setSinglePass(true);
+            OutputStream brokenStream = new OutputStream() {
+                int nBytes = 0;
+                @Override
+                public void write(int b) throws IOException {
+                    if (++nBytes > 1000) throw new IOException("Connection reset by peer");
+                }
+            };
+            try {
+                source.copyTo(OSMEntitySink.forStream(name, brokenStream));
+                fail("Extract should have failed.");
+            } catch (IOException | RuntimeException e) {
+                // Expected.
+            }
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName().startsWith("PBF-Writer") || thread.getName().startsWith("VEX-Writer"));
+            }
+        }
+    }
+
+    /** Records the IDs of all entities written to it. */
+    static class CollectingSink implements OSMEntitySink {
+
+        TLongSet nodeIds = new TLongHashSet();
+        TLongSet wayIds = new TLongHashSet();
+        TLongSet relationIds = new TLongHashSet();
+
+        /** Whether each kind of entity arrived in a single group, in ascending ID order. */
+        boolean sorted = true;
+
+        private OSMEntity.Type prevType = OSMEntity.Type.NODE;
+        private long prevId = Long.MIN_VALUE;
+
+        private void check (OSMEntity.Type type, long id) {
+            if (type.ordinal() < prevType.ordinal() || (type == prevType && id <= prevId)) sorted = false;
+            prevType = type;
+            prevId = id;
+        }
+
+        @Override
+        public void writeBegin() { }
+
+        @Override
+        public void setReplicationTimestamp(long secondsSinceEpoch) { }
+
+        @Override
+        public void writeNode(long id, Node node) {
+            check(OSMEntity.Type.NODE, id);
+            nodeIds.add(id);
+        }
+
+        @Override
+        public void writeWay(long id, Way way) {
+            check(OSMEntity.Type.WAY, id);
+            wayIds.add(id);
+        }
+
+        @Override
+        public void writeRelation(long id, Relation relation) {
+            check(OSMEntity.Type.RELATION, id);
+            relationIds.add(id);
+        }
+
+        @Override
+        public void writeEnd() { }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/** Tests the Updater against a replication mirror on the local filesystem. */
+public class UpdaterTest extends TestCase {
+
+    private static final long T0 = Instant.parse("2024-01-01T00:00:00Z").getEpochSecond();
+
+    /** Diffs 1 through FIRST_AVAILABLE - 1 have been removed from the mirror. */
+    private static final int FIRST_AVAILABLE = 100, LATEST = 2000;
+
+    private OSM osm;
+    private File mirror;
+
+    /** A database without a plausible replication timestamp must not be polled for updates over and over. */
+    public void testNoPollingWithoutTimestamp() throws Exception {
+        Updater updater = new Updater(osm);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            updater.start(executor);
+            executor.submit(() -> { }).get();
+            assertTrue(executor.getQueue().isEmpty());
+            assertEquals(0, updater.statesFetched.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** The index of ways by node must only be built once updates are started, never for a read-only server. */
+    public void testWaysByNodeOnlyIndexedWhenUpdating() throws Exception {
+        Way way = new Way();
+        way.nodes = new long[] { 1, 2 };
+        osm.ways.put(10L, way);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            assertNull(VanillaExtract.startUpdater(osm, true, executor));
+            Updater updater = new Updater(osm);
+            executor.submit(() -> { }).get();
+            assertFalse(osm.isIndexingWaysByNode());
+            assertTrue(osm.waysByNode.isEmpty());
+            updater.start(executor);
+            executor.submit(() -> { }).get();
+            assertTrue(osm.isIndexingWaysByNode());
+            assertEquals(10L, osm.waysOfNode(2).sum());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Diffs are a minute apart, except for an outage of a day before diff 1201. */
+    private static long timestamp(int seq) {
+        return T0 + 60 * (seq - 1) + (seq > 1200 ? 86400 : 0);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        mirror = Files.createTempDirectory("replication").toFile();
+        writeState(new File(mirror, "state.txt"), LATEST);
+        for (int seq = FIRST_AVAILABLE; seq <= LATEST; seq++) {
+            File state = new File(mirror, path(seq) + ".state.txt");
+            state.getParentFile().mkdirs();
+            writeState(state, seq);
+        }
+        osm = new OSM(null);
+        osm.setReplicationUrl(mirror.toURI().toString());
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        osm.close();
+        try (Stream<Path> paths = Files.walk(mirror.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static String path(int seq) {
+        return String.format(Locale.US, "%03d/%03d/%03d", seq / 1000000, seq / 1000 % 1000, seq % 1000);
+    }
+
+    private static void writeState(File file, int seq) throws IOException {
+        String timestamp = Instant.ofEpochSecond(timestamp(seq)).toString().replace(":", "\\:");
+        Files.writeString(file.toPath(), "#Mon Jan 01 00:00:00 UTC 2024\nsequenceNumber=" + seq +
+                "\ntimestamp=" + timestamp + "\n");
+    }
+
+    /** The first diff after the database timestamp must be found without fetching the state of every diff. */
+    public void testFindDiffs() {
+        for (int first : new int[] { 150, 1200, 1201, 1500, LATEST }) {
+            Updater updater = new Updater(osm);
+            osm.setReplicationTimestamp(timestamp(first - 1) + 10);
+            List<Updater.Diff> diffs = updater.findDiffs();
+            assertEquals(LATEST - first + 1, diffs.size());
+            assertEquals(first, diffs.get(0).sequenceNumber);
+            assertEquals(LATEST, diffs.get(diffs.size() - 1).sequenceNumber);
+            assertTrue(updater.statesFetched.get() < 30);
+        }
+        // A database older than the history kept on the server is updated from the oldest diff available.
+        Updater updater = new Updater(osm);
+        osm.setReplicationTimestamp(T0 - 1000);
+        assertEquals(FIRST_AVAILABLE, updater.findDiffs().get(0).sequenceNumber);
+        // A database that is up to date needs no diffs.
+        osm.setReplicationTimestamp(timestamp(LATEST));
+        assertTrue(updater.findDiffs().isEmpty());
+    }
+
+    private void writeDiffs(int firstSeq, int lastSeq) throws IOException {
+        for (int seq = firstSeq; seq <= lastSeq; seq++) {
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(
+                    new File(mirror, path(seq) + ".osc.gz")))) {
+                out.write("<osmChange version=\"0.6\"></osmChange>".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /** Diffs must be applied in order, moving the database timestamp forward to that of each one. */
+    public void testApply() throws Exception {
+        writeDiffs(LATEST - 9, LATEST);
+        osm.setReplicationTimestamp(timestamp(LATEST - 10) + 10);
+        Updater updater = new Updater(osm);
+        updater.update();
+        assertEquals(timestamp(LATEST), osm.timestamp.get());
+        assertEquals(LATEST, updater.lastApplied.sequenceNumber);
+    }
+
+    /** Updates must stop at a diff that cannot be downloaded, even though later ones have already been prefetched. */
+    public void testApplyStopsAtMissingDiff() throws Exception {
+        writeDiffs(LATEST - 9, LATEST - 6);
+        writeDiffs(LATEST - 4, LATEST);
+        osm.setReplicationTimestamp(timestamp(LATEST - 10) + 10);
+        Updater updater = new Updater(osm);
+        updater.update();
+        assertEquals(timestamp(LATEST - 6), osm.timestamp.get());
+        assertEquals(LATEST - 6, updater.lastApplied.sequenceNumber);
+    }
+
+    /** A range of diffs read from a local copy of the replication tree must be applied regardless of timestamps. */
+    public void testReplay() throws Exception {
+        for (int seq = 500; seq <= 509; seq++) {
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(
+                    new File(mirror, path(seq) + ".osc.gz")))) {
+                out.write(("<osmChange version=\"0.6\"><create><node id=\"" + seq +
+                        "\" lat=\"1\" lon=\"1\"/></create></osmChange>").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        Updater updater = new Updater(osm, ReplicationSource.forDirectory(mirror));
+        assertEquals(10, updater.replay(500, 509));
+        assertEquals(10, osm.nodes.size());
+        assertTrue(osm.nodes.containsKey(509L));
+        assertEquals(timestamp(509), osm.timestamp.get());
+        assertEquals(509, updater.lastApplied.sequenceNumber);
+    }
+
+    /** The state must be polled shortly after the next diff is due, and less and less often while it is late. */
+    public void testPollDelay() throws Exception {
+        osm.setReplicationTimestamp(timestamp(LATEST));
+        Updater updater = new Updater(osm);
+        assertFalse(updater.update());
+        assertEquals(60, updater.intervalSeconds);
+        long min = Updater.MIN_POLL_SECONDS;
+        assertEquals(min, updater.nextPollDelay(false, timestamp(LATEST) + 70));
+        // The delay doubles, but never exceeds a quarter of the interval.
+        assertEquals(15, updater.nextPollDelay(false, timestamp(LATEST) + 80));
+        assertEquals(15, updater.nextPollDelay(false, timestamp(LATEST) + 95));
+
+        writeDiffs(LATEST - 1, LATEST);
+        osm.setReplicationTimestamp(timestamp(LATEST - 2) + 10);
+        assertTrue(updater.update());
+        assertEquals(60 + min - 5, updater.nextPollDelay(true, timestamp(LATEST) + 5));
+        assertEquals(min, updater.nextPollDelay(true, timestamp(LATEST) + 3600));
+    }
+
+    /** Diffs left over because one could not be downloaded must be retried soon, not when the next one is due. */
+    public void testPollDelayAfterPartialUpdate() throws Exception {
+        writeDiffs(LATEST - 9, LATEST - 6);
+        writeDiffs(LATEST - 4, LATEST);
+        osm.setReplicationTimestamp(timestamp(LATEST - 10) + 10);
+        Updater updater = new Updater(osm);
+        assertTrue(updater.update());
+        long min = Updater.MIN_POLL_SECONDS;
+        assertEquals(min, updater.nextPollDelay(true, timestamp(LATEST) + 5));
+        // The missing diff appears, and the rest are applied.
+        writeDiffs(LATEST - 5, LATEST - 5);
+        assertTrue(updater.update());
+        assertEquals(timestamp(LATEST), osm.timestamp.get());
+        assertEquals(60 + min - 5, updater.nextPollDelay(true, timestamp(LATEST) + 5));
+    }
+
+}